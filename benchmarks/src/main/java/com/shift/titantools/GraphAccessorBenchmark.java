@@ -0,0 +1,99 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares calling the private graph members through Method.invoke, the way
+ * TitanGraphTools used to, with calling them through GraphAccessors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphAccessorBenchmark {
+    private SyntheticGraph synthetic;
+    private StandardTitanGraph graph;
+    private InternalTitanTransaction tx;
+
+    private TitanKey key;
+    private TitanProperty property;
+    private String value;
+
+    private Method getIndexKeyMethod;
+    private Method getIndexValueMethod;
+    private Method getTypeFromIDMethod;
+
+    @Setup
+    public void setUp() throws Exception {
+        synthetic = new SyntheticGraph("local", 1, 42);
+        graph = synthetic.getGraph();
+
+        tx = (InternalTitanTransaction) graph.newTransaction();
+        key = tx.getPropertyKey(SyntheticGraph.NAME);
+        property = tx.getVertex(synthetic.getVertexIds().get(0)).getProperties(key).iterator().next();
+        value = (String) property.getAttribute();
+
+        getIndexKeyMethod = StandardTitanGraph.class.getDeclaredMethod("getIndexKey", Object.class);
+        getIndexKeyMethod.setAccessible(true);
+        getIndexValueMethod = StandardTitanGraph.class.getDeclaredMethod("getIndexValue", TitanProperty.class);
+        getIndexValueMethod.setAccessible(true);
+        getTypeFromIDMethod = StandardTitanGraph.class.getDeclaredMethod("getTypeFromID", long.class, InternalTitanTransaction.class);
+        getTypeFromIDMethod.setAccessible(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tx.commit();
+        synthetic.close();
+    }
+
+    @Benchmark
+    public ByteBuffer reflectiveGetIndexKey() throws Exception {
+        return (ByteBuffer) getIndexKeyMethod.invoke(graph, value);
+    }
+
+    @Benchmark
+    public ByteBuffer accessorGetIndexKey() throws Exception {
+        return GraphAccessors.getIndexKey(graph, value);
+    }
+
+    @Benchmark
+    public ByteBuffer reflectiveGetIndexValue() throws Exception {
+        return (ByteBuffer) getIndexValueMethod.invoke(graph, property);
+    }
+
+    @Benchmark
+    public ByteBuffer accessorGetIndexValue() throws Exception {
+        return GraphAccessors.getIndexValue(graph, property);
+    }
+
+    @Benchmark
+    public Object reflectiveGetTypeFromID() throws Exception {
+        return getTypeFromIDMethod.invoke(graph, key.getID(), tx);
+    }
+
+    @Benchmark
+    public Object accessorGetTypeFromID() throws Exception {
+        return GraphAccessors.getTypeFromID(graph, key.getID(), tx);
+    }
+}
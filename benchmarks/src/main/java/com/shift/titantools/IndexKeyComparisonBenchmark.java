@@ -0,0 +1,93 @@
+package com.shift.titantools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the check index repairs make for every entry of a property
+ * key: serializing the vertex's value into an index key, and comparing it
+ * with the key of the index row the entry was found in
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexKeyComparisonBenchmark {
+    @Param({"8", "64", "512"})
+    public int valueLength;
+
+    private SyntheticGraph graph;
+    private TitanGraphTools tools;
+
+    private String value;
+    private ByteBuffer rowKey;
+    private ByteBuffer directKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        //serialization doesn't depend on the store
+        graph = new SyntheticGraph("local", 0, 42);
+        tools = graph.getTools();
+
+        char[] chars = new char[valueLength];
+        Arrays.fill(chars, 'v');
+        value = new String(chars);
+        rowKey = tools.getIndexKey(value);
+        directKey = ByteBuffer.allocateDirect(rowKey.remaining());
+        directKey.put(rowKey.duplicate());
+        directKey.flip();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graph.close();
+    }
+
+    @Benchmark
+    public ByteBuffer getIndexKey() throws Exception {
+        return tools.getIndexKey(value);
+    }
+
+    @Benchmark
+    public boolean getIndexKeyAndCompareArrays() throws Exception {
+        byte[] keyArray = getByteArray(rowKey);
+        byte[] valueArray = getByteArray(tools.getIndexKey(value));
+        return Arrays.equals(keyArray, valueArray);
+    }
+
+    @Benchmark
+    public boolean getIndexKeyAndCompare() throws Exception {
+        return ByteBuffers.equals(rowKey, tools.getIndexKey(value));
+    }
+
+    @Benchmark
+    public boolean compareDirect() throws Exception {
+        return ByteBuffers.equals(rowKey, directKey);
+    }
+
+    /**
+     * Copies a buffer the way repairType did before comparing keys in place
+     */
+    private static byte[] getByteArray(ByteBuffer buffer) {
+        int offset = buffer.arrayOffset();
+        byte[] bytes = new byte[buffer.remaining() - offset];
+        System.arraycopy(buffer.array(), offset, bytes, offset, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,67 @@
+package com.shift.titantools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures checking the index of a key, per generated vertex. Every vertex
+ * has one entry in the uid and the name index, so this is the cost of
+ * validating one index entry, including the lookup of its vertex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexValidationBenchmark {
+    static final int VERTICES = 10000;
+
+    @Param({"local", "embeddedcassandra"})
+    public String backend;
+
+    private SyntheticGraph graph;
+    private TitanGraphTools tools;
+
+    @Setup
+    public void setUp() throws Exception {
+        graph = new SyntheticGraph(backend, VERTICES, 42);
+        tools = graph.getTools();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graph.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VERTICES)
+    public void checkUniqueKey() throws Exception {
+        tools.checkType(SyntheticGraph.UID);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VERTICES)
+    public void checkKey() throws Exception {
+        tools.checkType(SyntheticGraph.NAME);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VERTICES)
+    public void checkKeysTogether() throws Exception {
+        tools.checkTypes(SyntheticGraph.UID, SyntheticGraph.NAME);
+    }
+}
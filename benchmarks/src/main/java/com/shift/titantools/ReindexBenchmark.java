@@ -0,0 +1,54 @@
+package com.shift.titantools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reindexType per vertex. Reindexing writes entries that already
+ * exist, so every invocation does the same amount of work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReindexBenchmark {
+    static final int VERTICES = 10000;
+
+    @Param({"local", "embeddedcassandra"})
+    public String backend;
+
+    private SyntheticGraph graph;
+    private TitanGraphTools tools;
+
+    @Setup
+    public void setUp() throws Exception {
+        graph = new SyntheticGraph(backend, VERTICES, 42);
+        tools = graph.getTools();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graph.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VERTICES)
+    public void reindexKey() throws Exception {
+        tools.reindexType(SyntheticGraph.NAME);
+    }
+}
@@ -0,0 +1,148 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanFactory;
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanLabel;
+import com.thinkaurelius.titan.core.TitanTransaction;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.thinkaurelius.titan.graphdb.configuration.GraphDatabaseConfiguration.*;
+
+/**
+ * Generates a reproducible graph for the benchmarks to run against.
+ *
+ * Every vertex has a unique indexed "uid", an indexed "name" drawn from a
+ * small vocabulary, an unindexed "age", and a few "knows" edges to
+ * vertices created before it in the same transaction.
+ *
+ * Two backends are supported: "local", berkeleyje in a temporary directory,
+ * on tmpfs when /dev/shm exists, which is the closest titan 0.2 has to an
+ * in memory store, and "embeddedcassandra", configured by the file in the
+ * titantools.cassandra.config system property, or the test configuration.
+ */
+class SyntheticGraph {
+    static final String UID = "uid";
+    static final String NAME = "name";
+    static final String AGE = "age";
+    static final String KNOWS = "knows";
+
+    private static final int NAMES = 100;
+    private static final int EDGES_PER_VERTEX = 3;
+    private static final int COMMIT_INTERVAL = 1000;
+
+    private final StandardTitanGraph graph;
+    private final TitanGraphTools tools;
+    private final File directory;
+    private final List<Long> vertexIds;
+
+    /**
+     * @param backend: "local" or "embeddedcassandra"
+     * @param vertices: the number of vertices to generate
+     * @param seed: the seed the properties and edges are generated with
+     * @throws RepairException
+     * @throws IOException
+     */
+    SyntheticGraph(String backend, int vertices, long seed) throws RepairException, IOException {
+        Configuration config = new BaseConfiguration();
+        Configuration storage = config.subset(STORAGE_NAMESPACE);
+        storage.addProperty(STORAGE_BACKEND_KEY, backend);
+        if ("local".equals(backend)) {
+            File shm = new File("/dev/shm");
+            directory = File.createTempFile("titan-tools-benchmark", "", shm.isDirectory() ? shm : null);
+            directory.delete();
+            directory.mkdirs();
+            storage.addProperty(STORAGE_DIRECTORY_KEY, directory.getPath());
+        } else if ("embeddedcassandra".equals(backend)) {
+            directory = null;
+            storage.addProperty("cassandra-config-dir", System.getProperty(
+                    "titantools.cassandra.config",
+                    "file://" + System.getProperty("user.dir") + "/../src/test/resources/config/cassandra.yaml"
+            ));
+            //every run gets a keyspace of its own, so runs don't see each other's data
+            storage.addProperty("keyspace", "titantools_bench_" + System.currentTimeMillis());
+        } else {
+            throw new IllegalArgumentException("unsupported backend: " + backend);
+        }
+
+        graph = (StandardTitanGraph) TitanFactory.open(config);
+        tools = new TitanGraphTools(graph);
+        vertexIds = new ArrayList<Long>(vertices);
+        generate(vertices, new Random(seed));
+    }
+
+    private void generate(int vertices, Random random) {
+        tools.makeType(UID, String.class, true, true);
+        tools.makeType(NAME, String.class, true, false);
+        tools.makeType(AGE, Integer.class, false, false);
+
+        TitanTransaction tx = graph.newTransaction();
+        TitanKey uid = tx.getPropertyKey(UID);
+        TitanKey name = tx.getPropertyKey(NAME);
+        TitanKey age = tx.getPropertyKey(AGE);
+        TitanLabel knows = tx.makeType().name(KNOWS).makeEdgeLabel();
+        tx.commit();
+
+        List<TitanVertex> batch = new ArrayList<TitanVertex>(COMMIT_INTERVAL);
+        tx = graph.newTransaction();
+        for (int i=0; i<vertices; i++) {
+            TitanVertex v = tx.addVertex();
+            v.addProperty(uid, "uid-" + i);
+            v.addProperty(name, "name-" + random.nextInt(NAMES));
+            v.addProperty(age, random.nextInt(100));
+            for (int j=0; j<EDGES_PER_VERTEX && !batch.isEmpty(); j++) {
+                tx.addEdge(v, batch.get(random.nextInt(batch.size())), knows);
+            }
+            batch.add(v);
+
+            if (batch.size() == COMMIT_INTERVAL || i == vertices - 1) {
+                tx.commit();
+                for (TitanVertex added: batch) vertexIds.add(added.getID());
+                batch.clear();
+                tx = graph.newTransaction();
+            }
+        }
+        tx.commit();
+    }
+
+    StandardTitanGraph getGraph() {
+        return graph;
+    }
+
+    TitanGraphTools getTools() {
+        return tools;
+    }
+
+    /**
+     * Returns the ids of the generated vertices, in the order they were created
+     *
+     * @return
+     */
+    List<Long> getVertexIds() {
+        return vertexIds;
+    }
+
+    /**
+     * Shuts the graph down, and removes its files if it has any
+     */
+    void close() {
+        graph.shutdown();
+        if (directory != null) delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
+import com.thinkaurelius.titan.graphdb.query.SimpleTitanQuery;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+import com.thinkaurelius.titan.graphdb.vertices.InternalTitanVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cleanVertices: the whole check per vertex, and the parsing and
+ * type validation of a single edge store column, with and without the
+ * type id cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VertexCleanBenchmark {
+    static final int VERTICES = 10000;
+    static final int COLUMNS = 10000;
+
+    @Param({"local", "embeddedcassandra"})
+    public String backend;
+
+    private SyntheticGraph graph;
+    private TitanGraphTools tools;
+    private IDManager idManager;
+    private InternalTitanTransaction tx;
+    private TypeIdCache typeIds;
+
+    private final ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+
+    @Setup
+    public void setUp() throws Exception {
+        graph = new SyntheticGraph(backend, VERTICES, 42);
+        tools = graph.getTools();
+        idManager = tools.getIdManager();
+        typeIds = new TypeIdCache(tools, 1024);
+
+        //collect the columns of the generated vertices, repeating them as needed
+        tx = (InternalTitanTransaction) graph.getGraph().newTransaction();
+        StoreTransaction stx = ((BackendTransaction) tx.getTxHandle()).getStoreTransactionHandle();
+        List<ByteBuffer> collected = new ArrayList<ByteBuffer>();
+        for (Long id: graph.getVertexIds()) {
+            InternalTitanVertex v = (InternalTitanVertex) tx.getVertex(id);
+            for (Entry entry: tools.queryForEntries(new SimpleTitanQuery(v), stx)) {
+                collected.add(entry.getColumn());
+            }
+            if (collected.size() >= COLUMNS) break;
+        }
+        for (int i=0; i<COLUMNS; i++) {
+            columns[i] = collected.get(i % collected.size());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tx.commit();
+        graph.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VERTICES)
+    public void checkVertices() throws Exception {
+        tools.checkVertices();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public int parseColumns() throws Exception {
+        int invalid = 0;
+        for (ByteBuffer column: columns) {
+            long etid = IDHandler.readEdgeType(column.duplicate(), idManager);
+            if (tools.getTypeFromID(etid, tx) == null) invalid++;
+        }
+        return invalid;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public int parseColumnsCached() throws Exception {
+        int invalid = 0;
+        for (ByteBuffer column: columns) {
+            long etid = IDHandler.readEdgeType(column.duplicate(), idManager);
+            if (!typeIds.isValid(etid, tx)) invalid++;
+        }
+        return invalid;
+    }
+}
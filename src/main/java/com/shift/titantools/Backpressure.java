@@ -0,0 +1,308 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.TemporaryStorageException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Watches the latency of the store calls made by a scan, and adjusts the
+ * number of threads allowed to work against the store at once to match.
+ *
+ * Every thread a scan reads or writes with holds a permit while it does:
+ * the scan workers for each row, and the lookup, read ahead and writer
+ * threads for each task they run. A thread that already holds a permit
+ * doesn't take another one, and a scan worker gives its permit up while it
+ * waits for the other threads, so they can't deadlock it.
+ *
+ * Every ADJUST_INTERVAL calls, the 99th percentile of the last WINDOW call
+ * latencies is compared with the target. Above it, the number of permits is
+ * halved, well below it, one more permit is handed out, up to the number of
+ * threads the scan runs. Calls failing with a TemporaryStorageException,
+ * which is how timeouts surface, also halve it, and are retried with an
+ * exponential backoff instead of failing the scan. Every change is reported
+ * to the scan's listeners.
+ */
+class Backpressure {
+    private static final int WINDOW = 1000;
+    private static final int ADJUST_INTERVAL = 100;
+    private static final long INITIAL_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 10000;
+
+    private volatile long targetLatencyNanos = 200 * 1000000L;
+    private volatile int maxRetries = 5;
+
+    private final long[] latencies = new long[WINDOW];
+    private long samples = 0;
+    private int sinceAdjust = 0;
+
+    private int maxConcurrency = 1;
+    private int limit = 1;
+    private int active = 0;
+    private ScanMetrics metrics = null;
+    private List<ScanListener> listeners = Collections.emptyList();
+
+    /**
+     * The number of nested enters of each thread, only the outermost takes a permit
+     */
+    private final ThreadLocal<int[]> held = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * A call to the store, which may be retried
+     */
+    interface StoreCall<T> {
+        T call() throws StorageException;
+    }
+
+    /**
+     * Sets the p99 latency above which the number of active workers is
+     * reduced, zero or less disables the adjustment
+     *
+     * @param millis
+     */
+    public void setTargetLatency(long millis) {
+        targetLatencyNanos = millis * 1000000L;
+    }
+
+    public long getTargetLatency() {
+        return targetLatencyNanos / 1000000L;
+    }
+
+    /**
+     * Sets the number of times a call failing with a temporary storage
+     * exception is retried before the scan is failed
+     *
+     * @param maxRetries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Resets the latency window, and hands out a permit to each of the
+     * given threads
+     *
+     * @param maxConcurrency: the number of threads the scan works with
+     * @param metrics: the metrics of the scan, which track the permits handed out
+     * @param listeners: notified when the number of permits changes
+     */
+    synchronized void start(int maxConcurrency, ScanMetrics metrics, List<ScanListener> listeners) {
+        this.maxConcurrency = maxConcurrency;
+        this.metrics = metrics;
+        this.listeners = listeners;
+        limit = maxConcurrency;
+        active = 0;
+        samples = 0;
+        sinceAdjust = 0;
+        metrics.setConcurrency(limit);
+    }
+
+    /**
+     * Stops reporting to the listeners of the last scan
+     */
+    synchronized void stop() {
+        metrics = null;
+        listeners = Collections.emptyList();
+    }
+
+    /**
+     * Returns the number of threads currently allowed to work against the store
+     *
+     * @return
+     */
+    synchronized int getConcurrency() {
+        return limit;
+    }
+
+    /**
+     * Waits until the calling thread may work against the store, unless it
+     * already holds a permit
+     *
+     * @throws RepairException if interrupted while waiting
+     */
+    void enter() throws RepairException {
+        int[] depth = held.get();
+        if (depth[0] == 0) acquire();
+        depth[0]++;
+    }
+
+    void exit() {
+        int[] depth = held.get();
+        if (depth[0] == 0) return;
+        if (--depth[0] == 0) release();
+    }
+
+    /**
+     * Waits for a task run on another thread, giving up the calling thread's
+     * permit in the meantime, since the task may need one
+     *
+     * @param future
+     * @return the task's result
+     * @throws RepairException if the task failed, or the wait was interrupted
+     */
+    <T> T await(Future<T> future) throws RepairException {
+        int[] depth = held.get();
+        int suspended = depth[0];
+        if (suspended > 0) {
+            depth[0] = 0;
+            release();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RepairException) throw (RepairException) e.getCause();
+            throw new RepairException(e.getCause());
+        } finally {
+            if (suspended > 0) {
+                acquire();
+                depth[0] = suspended;
+            }
+        }
+    }
+
+    private synchronized void acquire() throws RepairException {
+        try {
+            while (active >= limit) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(e);
+        }
+        active++;
+    }
+
+    private synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Makes the given call, recording its latency, and retrying it if it
+     * fails with a temporary storage exception
+     *
+     * @param call
+     * @return the call's result
+     * @throws RepairException if the call fails permanently, or too many times
+     */
+    <T> T call(StoreCall<T> call) throws RepairException {
+        return execute(call, true);
+    }
+
+    /**
+     * Makes the given call, retrying it if it fails with a temporary storage
+     * exception, without recording its latency. The call is made again from
+     * scratch, so it must be safe to repeat.
+     *
+     * @param call
+     * @return the call's result
+     * @throws RepairException if the call fails permanently, or too many times
+     */
+    <T> T retry(StoreCall<T> call) throws RepairException {
+        return execute(call, false);
+    }
+
+    private <T> T execute(StoreCall<T> call, boolean record) throws RepairException {
+        for (int attempt=0; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                if (record) record(System.nanoTime() - start);
+                return result;
+            } catch (TemporaryStorageException e) {
+                backoff(e, attempt);
+            } catch (StorageException e) {
+                throw new RepairException(e);
+            }
+        }
+    }
+
+    /**
+     * Handles a temporary storage exception thrown by a call that can't
+     * simply be made again, lowering the concurrency and sleeping before the
+     * caller recovers and tries again
+     *
+     * @param e: the failure
+     * @param attempt: the number of times the call has already been retried
+     * @throws RepairException if the call has been retried too many times
+     */
+    void backoff(TemporaryStorageException e, int attempt) throws RepairException {
+        congested();
+        if (attempt >= maxRetries) {
+            throw new RepairException("storage call failed after " + attempt + " retries", e);
+        }
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << attempt);
+        System.out.println("storage call failed, retrying in " + backoff + "ms: " + e.getMessage());
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(ie);
+        }
+    }
+
+    private void record(long nanos) {
+        String reason = null;
+        synchronized (this) {
+            latencies[(int) (samples++ % WINDOW)] = nanos;
+            if (++sinceAdjust < ADJUST_INTERVAL || targetLatencyNanos <= 0) return;
+            sinceAdjust = 0;
+
+            long p99 = percentile(0.99);
+            if (p99 > targetLatencyNanos && limit > 1) {
+                limit = Math.max(1, limit / 2);
+                reason = "storage p99 latency " + p99 / 1000000 + "ms above target";
+            } else if (p99 < targetLatencyNanos / 2 && limit < maxConcurrency) {
+                limit++;
+                notifyAll();
+                reason = "storage p99 latency " + p99 / 1000000 + "ms below target";
+            }
+        }
+        if (reason != null) changed(reason);
+    }
+
+    private void congested() {
+        synchronized (this) {
+            if (limit == 1) return;
+            limit = Math.max(1, limit / 2);
+        }
+        changed("storage call timed out");
+    }
+
+    /**
+     * Tells the listeners of the scan about a change in the number of
+     * permits, outside the lock so they can't hold up the other threads
+     */
+    private void changed(String reason) {
+        ScanMetrics metrics;
+        List<ScanListener> listeners;
+        synchronized (this) {
+            if (this.metrics == null) return;
+            metrics = this.metrics;
+            listeners = this.listeners;
+            metrics.setConcurrency(limit);
+        }
+        for (ScanListener listener: listeners) listener.concurrencyChanged(metrics, reason);
+    }
+
+    private long percentile(double p) {
+        int count = (int) Math.min(samples, WINDOW);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) (count * p))];
+    }
+}
@@ -0,0 +1,103 @@
+package com.shift.titantools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for working with the remaining bytes of byte buffers, without
+ * changing their positions
+ */
+final class ByteBuffers {
+
+    private ByteBuffers() { }
+
+    /**
+     * Compares the remaining bytes of the given buffers as unsigned
+     * values, the way cassandra orders row keys and column names
+     *
+     * @param a
+     * @param b
+     * @return a negative number, zero or a positive number as a is less than, equal to, or greater than b
+     */
+    public static int compare(ByteBuffer a, ByteBuffer b) {
+        int aLen = a.remaining();
+        int bLen = b.remaining();
+        int len = Math.min(aLen, bLen);
+        int aPos = a.position();
+        int bPos = b.position();
+        for (int i=0; i<len; i++) {
+            int diff = (a.get(aPos + i) & 0xff) - (b.get(bPos + i) & 0xff);
+            if (diff != 0) return diff;
+        }
+        return aLen - bLen;
+    }
+
+    /**
+     * Returns true if the remaining bytes of the given buffers are equal.
+     * Heap and direct buffers are read in place, 8 bytes at a time, so no
+     * arrays are allocated. A long is read in the buffer's byte order, so
+     * buffers set to different orders are compared a byte at a time.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static boolean equals(ByteBuffer a, ByteBuffer b) {
+        int len = a.remaining();
+        if (len != b.remaining()) return false;
+        int aPos = a.position();
+        int bPos = b.position();
+        int i = 0;
+        if (a.order() == b.order()) {
+            for (; i + 8 <= len; i += 8) {
+                if (a.getLong(aPos + i) != b.getLong(bPos + i)) return false;
+            }
+        }
+        for (; i<len; i++) {
+            if (a.get(aPos + i) != b.get(bPos + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the remaining bytes of the given buffer, without moving its position
+     *
+     * @param buffer
+     * @return
+     */
+    public static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the remaining bytes of the given buffer as a hex string
+     *
+     * @param buffer
+     * @return
+     */
+    public static String toHex(ByteBuffer buffer) {
+        StringBuilder sb = new StringBuilder(buffer.remaining() * 2);
+        for (int i=buffer.position(); i<buffer.limit(); i++) {
+            int b = buffer.get(i) & 0xff;
+            sb.append(Character.forDigit(b >>> 4, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a hex string written by toHex
+     *
+     * @param hex
+     * @return
+     */
+    public static ByteBuffer fromHex(String hex) {
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("invalid hex string: " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,193 @@
+package com.shift.titantools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Records how far a scan has gotten in a local file, so an interrupted
+ * run can pick up where it stopped instead of starting from the first key.
+ *
+ * A checkpoint holds the number of rows that have been completely processed
+ * from the start of the scan, the key of the last of those rows, and the
+ * scan counters for those rows. The last row is always one the scan didn't
+ * write to, so it's still in the store when the run is resumed. Rows
+ * processed past that point aren't recorded, and will be processed again
+ * when the run is resumed.
+ */
+class Checkpoint {
+    private final File file;
+    private final String job;
+    private final int interval;
+
+    private long position = 0;
+    private ByteBuffer lastKey = null;
+    private long[] counters;
+
+    private long savedPosition = 0;
+
+    private Checkpoint(File file, String job, int counterCount, int interval) {
+        this.file = file;
+        this.job = job;
+        this.interval = interval;
+        this.counters = new long[counterCount];
+    }
+
+    /**
+     * Opens the checkpoint file at the given path, loading the position it
+     * records if it exists
+     *
+     * @param path: the checkpoint file
+     * @param job: describes the scan, a checkpoint written by a different job is rejected
+     * @param counterCount: the number of counters the scan keeps
+     * @param interval: the number of rows between checkpoint writes
+     * @return
+     * @throws RepairException if the file can't be read or belongs to a different job
+     */
+    public static Checkpoint open(String path, String job, int counterCount, int interval) throws RepairException {
+        Checkpoint checkpoint = new Checkpoint(new File(path), job, counterCount, interval);
+        if (checkpoint.file.exists()) checkpoint.load();
+        return checkpoint;
+    }
+
+    private void load() throws RepairException {
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("unable to read checkpoint " + file, e);
+        }
+
+        if (!job.equals(props.getProperty("job"))) {
+            throw new RepairException(
+                    "checkpoint " + file + " was written by [" + props.getProperty("job") + "], not [" + job + "]"
+            );
+        }
+
+        try {
+            position = Long.parseLong(props.getProperty("position"));
+            String key = props.getProperty("lastKey", "");
+            lastKey = key.length() > 0 ? ByteBuffers.fromHex(key) : null;
+            String[] values = props.getProperty("counters", "").split(",");
+            for (int i=0; i<counters.length && i<values.length; i++) {
+                if (values[i].length() > 0) counters[i] = Long.parseLong(values[i]);
+            }
+        } catch (RuntimeException e) {
+            throw new RepairException("checkpoint " + file + " is corrupt", e);
+        }
+        savedPosition = position;
+    }
+
+    /**
+     * Returns true if this checkpoint was loaded from an earlier run
+     *
+     * @return
+     */
+    public boolean isResumed() {
+        return position > 0;
+    }
+
+    /**
+     * Returns the number of rows completed from the start of the scan
+     *
+     * @return
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the key of the last completed row, or null if no rows have been completed
+     *
+     * @return
+     */
+    public ByteBuffer getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * Returns the counters of the completed rows
+     *
+     * @return
+     */
+    public long[] getCounters() {
+        return counters.clone();
+    }
+
+    /**
+     * Records the given progress, writing it out if enough rows have
+     * been completed since the last write
+     *
+     * @param position
+     * @param lastKey
+     * @param counters
+     * @throws RepairException
+     */
+    public void update(long position, ByteBuffer lastKey, long[] counters) throws RepairException {
+        this.position = position;
+        this.lastKey = lastKey;
+        this.counters = counters.clone();
+        if (position - savedPosition >= interval) save();
+    }
+
+    /**
+     * Writes the current progress to a temporary file, syncs it, and moves
+     * it over the checkpoint, so a crash never leaves a partial checkpoint
+     *
+     * @throws RepairException
+     */
+    public void save() throws RepairException {
+        Properties props = new Properties();
+        props.setProperty("job", job);
+        props.setProperty("position", Long.toString(position));
+        props.setProperty("lastKey", lastKey == null ? "" : ByteBuffers.toHex(lastKey));
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<counters.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(counters[i]);
+        }
+        props.setProperty("counters", sb.toString());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("unable to write checkpoint " + file, e);
+        }
+        if (!tmp.renameTo(file)) {
+            //renameTo won't replace an existing file on some platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new RepairException("unable to replace checkpoint " + file);
+            }
+        }
+        savedPosition = position;
+    }
+
+    /**
+     * Removes the checkpoint once the scan has completed
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
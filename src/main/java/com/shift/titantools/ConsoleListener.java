@@ -0,0 +1,31 @@
+package com.shift.titantools;
+
+/**
+ * Prints the progress of a scan to the console, the way the tools always have
+ */
+class ConsoleListener extends ScanListenerAdapter {
+
+    public void progress(ScanMetrics metrics) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(metrics.getRowsCompleted()).append(' ').append(metrics.getProgressLabel());
+        sb.append(" (").append(Math.round(metrics.getRowsPerSecond())).append("/s");
+        long eta = metrics.getEtaMillis();
+        if (eta >= 0) sb.append(", eta ").append(eta / 1000).append('s');
+        sb.append(')');
+        System.out.println(sb);
+    }
+
+    public void concurrencyChanged(ScanMetrics metrics, String reason) {
+        System.out.println(reason + ", scan concurrency set to " + metrics.getConcurrency());
+    }
+
+    public void scanFinished(ScanMetrics metrics, Throwable failure) {
+        String[] phases = metrics.getPhaseNames();
+        if (phases.length == 0) return;
+        StringBuilder sb = new StringBuilder("time spent:");
+        for (String phase: phases) {
+            sb.append(' ').append(phase).append(' ').append(metrics.getPhaseMillis(phase)).append("ms");
+        }
+        System.out.println(sb);
+    }
+}
@@ -0,0 +1,257 @@
+package com.shift.titantools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single problem found by a scan.
+ *
+ * Findings are written to report files as JSON objects, one per line,
+ * holding everything needed to repair them without scanning again:
+ *
+ *   {"kind":"deleted vertex","vertex":4,"typeId":36,"type":"uid","row":"0a1b","column":"24","repaired":false}
+ *
+ * Row keys and columns are hex encoded. Fields that don't apply are left out.
+ */
+class Finding {
+    static final String DELETED_VERTEX = "deleted vertex";
+    static final String STALE_ENTRY = "stale index entry";
+    static final String MISMATCHED_PROPERTY = "value mismatch";
+    static final String PARTIAL_VERTEX = "invalid vertex";
+    static final String CORRUPT_RELATIONS = "corrupt vertex property";
+    static final String MISSING_ENTRY = "missing index entry";
+    static final String CONFLICTING_ENTRY = "conflicting index entry";
+
+    final String kind;
+    final long vertexId;
+    final long typeId;
+    final String typeName;
+    final ByteBuffer rowKey;
+    final ByteBuffer column;
+    final String detail;
+    final boolean repaired;
+
+    /**
+     * @param kind: one of the kinds above
+     * @param vertexId: the vertex the finding is about
+     * @param typeId: the id of the type the finding is about, or 0
+     * @param typeName: the name of that type, or null
+     * @param rowKey: the store row the finding was made in
+     * @param column: the column at fault, or null
+     * @param detail: anything else worth reporting, or null
+     * @param repaired: whether the problem was repaired
+     */
+    Finding(String kind, long vertexId, long typeId, String typeName, ByteBuffer rowKey, ByteBuffer column,
+            String detail, boolean repaired) {
+        this.kind = kind;
+        this.vertexId = vertexId;
+        this.typeId = typeId;
+        this.typeName = typeName;
+        this.rowKey = rowKey;
+        this.column = column;
+        this.detail = detail;
+        this.repaired = repaired;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(kind);
+        sb.append(" found: v[").append(vertexId).append(']');
+        if (typeName != null) sb.append(" key [").append(typeName).append(']');
+        else if (typeId != 0) sb.append(" type ").append(typeId);
+        if (rowKey != null) sb.append(" row ").append(ByteBuffers.toHex(rowKey));
+        if (column != null) sb.append(" column ").append(ByteBuffers.toHex(column));
+        if (detail != null) sb.append(" -> ").append(detail);
+        if (repaired) sb.append(" (repaired)");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the finding as a single line JSON object
+     *
+     * @return
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"kind\":");
+        quote(sb, kind);
+        sb.append(",\"vertex\":").append(vertexId);
+        if (typeId != 0) sb.append(",\"typeId\":").append(typeId);
+        if (typeName != null) {
+            sb.append(",\"type\":");
+            quote(sb, typeName);
+        }
+        if (rowKey != null) sb.append(",\"row\":\"").append(ByteBuffers.toHex(rowKey)).append('"');
+        if (column != null) sb.append(",\"column\":\"").append(ByteBuffers.toHex(column)).append('"');
+        if (detail != null) {
+            sb.append(",\"detail\":");
+            quote(sb, detail);
+        }
+        sb.append(",\"repaired\":").append(repaired).append('}');
+        return sb.toString();
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Parses a line written by toJson
+     *
+     * @param line
+     * @return
+     * @throws RepairException if the line isn't a finding
+     */
+    static Finding parse(String line) throws RepairException {
+        String kind = null;
+        long vertexId = 0;
+        long typeId = 0;
+        String typeName = null;
+        ByteBuffer rowKey = null;
+        ByteBuffer column = null;
+        String detail = null;
+        boolean repaired = false;
+
+        Parser p = new Parser(line);
+        p.expect('{');
+        if (!p.consume('}')) {
+            do {
+                String field = p.string();
+                p.expect(':');
+                if ("kind".equals(field)) kind = p.string();
+                else if ("vertex".equals(field)) vertexId = p.number();
+                else if ("typeId".equals(field)) typeId = p.number();
+                else if ("type".equals(field)) typeName = p.string();
+                else if ("row".equals(field)) rowKey = ByteBuffers.fromHex(p.string());
+                else if ("column".equals(field)) column = ByteBuffers.fromHex(p.string());
+                else if ("detail".equals(field)) detail = p.string();
+                else if ("repaired".equals(field)) repaired = p.bool();
+                else p.skip();
+            } while (p.consume(','));
+            p.expect('}');
+        }
+        if (kind == null) throw new RepairException("invalid finding, no kind: " + line);
+        return new Finding(kind, vertexId, typeId, typeName, rowKey, column, detail, repaired);
+    }
+
+    /**
+     * Just enough of a JSON parser to read back the flat objects toJson writes
+     */
+    private static class Parser {
+        private final String s;
+        private int pos = 0;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        private void whitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        boolean consume(char c) {
+            whitespace();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws RepairException {
+            if (!consume(c)) throw error("expected '" + c + "'");
+        }
+
+        String string() throws RepairException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) break;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) throw error("truncated escape");
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        long number() throws RepairException {
+            whitespace();
+            int start = pos;
+            if (pos < s.length() && s.charAt(pos) == '-') pos++;
+            while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+            try {
+                return Long.parseLong(s.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("expected a number");
+            }
+        }
+
+        boolean bool() throws RepairException {
+            whitespace();
+            if (s.startsWith("true", pos)) {
+                pos += 4;
+                return true;
+            }
+            if (s.startsWith("false", pos)) {
+                pos += 5;
+                return false;
+            }
+            throw error("expected a boolean");
+        }
+
+        /**
+         * Skips the value of a field this version doesn't know about
+         */
+        void skip() throws RepairException {
+            whitespace();
+            if (pos >= s.length()) throw error("expected a value");
+            char c = s.charAt(pos);
+            if (c == '"') {
+                string();
+            } else if (c == 't' || c == 'f') {
+                bool();
+            } else if (s.startsWith("null", pos)) {
+                pos += 4;
+            } else {
+                while (pos < s.length() && "-+.eE0123456789".indexOf(s.charAt(pos)) >= 0) pos++;
+            }
+        }
+
+        private RepairException error(String message) {
+            return new RepairException("invalid finding, " + message + " at " + pos + ": " + s);
+        }
+    }
+}
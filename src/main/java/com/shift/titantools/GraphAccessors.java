@@ -0,0 +1,203 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.core.TitanType;
+import com.thinkaurelius.titan.diskstorage.Backend;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStoreManager;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
+import com.thinkaurelius.titan.graphdb.query.AtomicQuery;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+import com.thinkaurelius.titan.graphdb.types.manager.TypeManager;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Calls the private members of StandardTitanGraph, and of its Backend, the
+ * tools depend on.
+ *
+ * The members are bound once, as static final method handles invoked with
+ * their exact signatures, so unlike Method.invoke the calls aren't boxed or
+ * checked on every use, and the JIT can inline them into the scan loops.
+ */
+final class GraphAccessors {
+    private static final Class<StandardTitanGraph> GRAPH = StandardTitanGraph.class;
+
+    //the reason the members couldn't be bound, if they couldn't
+    private static Exception bindFailure;
+
+    private static final MethodHandle GET_INDEX_KEY = method(ByteBuffer.class, "getIndexKey", Object.class);
+    private static final MethodHandle GET_INDEX_VALUE = method(ByteBuffer.class, "getIndexValue", TitanProperty.class);
+    private static final MethodHandle GET_KEYED_INDEX_COLUMN = method(ByteBuffer.class, "getKeyedIndexColumn", TitanKey.class);
+    private static final MethodHandle GET_INDEX_COLUMN = method(ByteBuffer.class, "getIndexColumn", TitanKey.class, long.class);
+    private static final MethodHandle QUERY_FOR_ENTRIES = method(List.class, "queryForEntries", AtomicQuery.class, StoreTransaction.class);
+    private static final MethodHandle GET_TYPE_FROM_ID = method(TitanType.class, "getTypeFromID", long.class, InternalTitanTransaction.class);
+
+    private static final MethodHandle BACKEND = getter(Backend.class, "backend");
+    private static final MethodHandle TYPE_MANAGER = getter(TypeManager.class, "etManager");
+    private static final MethodHandle ID_MANAGER = getter(IDManager.class, "idManager");
+
+    //only the job coordinator needs it, so failing to bind it doesn't fail check
+    private static final MethodHandle STORE_MANAGER = backendGetter(KeyColumnValueStoreManager.class, "storeManager");
+
+    private GraphAccessors() { }
+
+    /**
+     * Binds the given method, adapted to take the graph as its first parameter
+     * and to return the given type, the signature it's invoked with
+     */
+    private static MethodHandle method(Class<?> returnType, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = GRAPH.getDeclaredMethod(name, parameterTypes);
+            return MethodHandles.lookup().unreflect(accessible(method))
+                    .asType(MethodType.methodType(returnType, GRAPH, parameterTypes));
+        } catch (Exception e) {
+            if (bindFailure == null) bindFailure = e;
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(Class<?> type, String name) {
+        try {
+            Field field = GRAPH.getDeclaredField(name);
+            return MethodHandles.lookup().unreflectGetter(accessible(field))
+                    .asType(MethodType.methodType(type, GRAPH));
+        } catch (Exception e) {
+            if (bindFailure == null) bindFailure = e;
+            return null;
+        }
+    }
+
+    private static MethodHandle backendGetter(Class<?> type, String name) {
+        try {
+            Field field = Backend.class.getDeclaredField(name);
+            return MethodHandles.lookup().unreflectGetter(accessible(field))
+                    .asType(MethodType.methodType(type, Backend.class));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    /**
+     * Throws an exception if the graph members couldn't be bound, which
+     * happens if the Titan version on the classpath isn't supported
+     *
+     * @throws RepairException
+     */
+    static void check() throws RepairException {
+        if (bindFailure != null) {
+            throw new RepairException("unsupported titan version, the graph internals couldn't be accessed", bindFailure);
+        }
+    }
+
+    /**
+     * Wraps the exceptions thrown by a graph member, the same way the
+     * reflective calls used to
+     *
+     * @param t
+     * @return
+     */
+    private static RepairException wrap(Throwable t) {
+        if (t instanceof Error) throw (Error) t;
+        return new RepairException(t);
+    }
+
+    static ByteBuffer getIndexKey(StandardTitanGraph graph, Object att) throws RepairException {
+        try {
+            return (ByteBuffer) GET_INDEX_KEY.invokeExact(graph, att);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static ByteBuffer getIndexValue(StandardTitanGraph graph, TitanProperty prop) throws RepairException {
+        try {
+            return (ByteBuffer) GET_INDEX_VALUE.invokeExact(graph, prop);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static ByteBuffer getKeyedIndexColumn(StandardTitanGraph graph, TitanKey type) throws RepairException {
+        try {
+            return (ByteBuffer) GET_KEYED_INDEX_COLUMN.invokeExact(graph, type);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static ByteBuffer getIndexColumn(StandardTitanGraph graph, TitanKey type, long propertyID) throws RepairException {
+        try {
+            return (ByteBuffer) GET_INDEX_COLUMN.invokeExact(graph, type, propertyID);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Entry> queryForEntries(StandardTitanGraph graph, AtomicQuery query, StoreTransaction txh) throws RepairException {
+        try {
+            return (List<Entry>) QUERY_FOR_ENTRIES.invokeExact(graph, query, txh);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static TitanType getTypeFromID(StandardTitanGraph graph, long etid, InternalTitanTransaction tx) throws RepairException {
+        try {
+            return (TitanType) GET_TYPE_FROM_ID.invokeExact(graph, etid, tx);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static Backend getBackend(StandardTitanGraph graph) throws RepairException {
+        try {
+            return (Backend) BACKEND.invokeExact(graph);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static TypeManager getTypeManager(StandardTitanGraph graph) throws RepairException {
+        try {
+            return (TypeManager) TYPE_MANAGER.invokeExact(graph);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static IDManager getIdManager(StandardTitanGraph graph) throws RepairException {
+        try {
+            return (IDManager) ID_MANAGER.invokeExact(graph);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+
+    static KeyColumnValueStoreManager getStoreManager(Backend backend) throws RepairException {
+        if (STORE_MANAGER == null) {
+            throw new RepairException("unsupported titan version, the store manager of the backend couldn't be accessed");
+        }
+        try {
+            return (KeyColumnValueStoreManager) STORE_MANAGER.invokeExact(backend);
+        } catch (Throwable t) {
+            throw wrap(t);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.diskstorage.util.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads back a batch of index entries, each given by its row key and column,
+ * with the reads spread over a pool of threads.
+ *
+ * Like VertexBatchLookup, this doesn't reduce the number of reads, the store
+ * interface has no multi-key read, so each entry is still a slice of its
+ * single column. The entries of a window are split into chunks read
+ * concurrently, so the window waits on the slowest chunk rather than on the
+ * sum of every read.
+ */
+class IndexEntryLookup {
+    private final KeyColumnValueStore indexStore;
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final Backpressure backpressure;
+
+    /**
+     * @param indexStore
+     * @param pool: the threads to run the reads on, reads run on the calling thread if this is null
+     * @param parallelism: the number of chunks a batch is split into
+     * @param backpressure: limits the chunks read at once along with the rest of the scan
+     */
+    public IndexEntryLookup(KeyColumnValueStore indexStore, ExecutorService pool, int parallelism, Backpressure backpressure) {
+        this.indexStore = indexStore;
+        this.pool = pool;
+        this.parallelism = pool == null ? 1 : parallelism;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Reads the given index entries
+     *
+     * @param keys: the index row of each entry
+     * @param columns: the column of each entry, in the same order as the keys
+     * @param stx: the store transaction to read with
+     * @return for each entry, the columns found, an empty list if the entry is missing
+     * @throws RepairException
+     */
+    public List<List<Entry>> lookup(List<ByteBuffer> keys, List<ByteBuffer> columns, StoreTransaction stx) throws RepairException {
+        int size = keys.size();
+        List<List<Entry>> results = new ArrayList<List<Entry>>(Collections.<List<Entry>>nCopies(size, null));
+        if (size == 0) return results;
+
+        int chunkSize = (size + parallelism - 1) / parallelism;
+        if (pool == null) {
+            new ChunkRead(keys, columns, stx, results, 0, size).call();
+            return results;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(parallelism);
+        for (int from=0; from<size; from+=chunkSize) {
+            futures.add(pool.submit(new ChunkRead(keys, columns, stx, results, from, Math.min(size, from + chunkSize))));
+        }
+
+        RepairException failure = null;
+        for (Future<Void> future: futures) {
+            try {
+                backpressure.await(future);
+            } catch (RepairException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    private class ChunkRead implements Callable<Void> {
+        private final List<ByteBuffer> keys;
+        private final List<ByteBuffer> columns;
+        private final StoreTransaction stx;
+        private final List<List<Entry>> results;
+        private final int from;
+        private final int to;
+
+        ChunkRead(List<ByteBuffer> keys, List<ByteBuffer> columns, StoreTransaction stx,
+                  List<List<Entry>> results, int from, int to) {
+            this.keys = keys;
+            this.columns = columns;
+            this.stx = stx;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        public Void call() throws RepairException {
+            backpressure.enter();
+            try {
+                for (int i=from; i<to; i++) {
+                    final ByteBuffer key = keys.get(i);
+                    final ByteBuffer column = columns.get(i);
+                    results.set(i, backpressure.call(new Backpressure.StoreCall<List<Entry>>() {
+                        public List<Entry> call() throws StorageException {
+                            return indexStore.getSlice(
+                                    key.duplicate(), column.duplicate(), ByteBufferUtil.nextBiggerBuffer(column), stx
+                            );
+                        }
+                    }));
+                }
+                return null;
+            } finally {
+                backpressure.exit();
+            }
+        }
+    }
+}
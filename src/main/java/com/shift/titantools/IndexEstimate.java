@@ -0,0 +1,125 @@
+package com.shift.titantools;
+
+/**
+ * How corrupt the index of a key is estimated to be, from a random sample
+ * of its rows, as returned by TitanGraphTools.sampleType.
+ *
+ * The rate of bad entries comes with a 95% Wilson score interval. Entries
+ * are treated as sampled independently, which they aren't quite, whole rows
+ * are, so the interval is a little narrower than it should be for keys with
+ * a few values shared by many vertices.
+ */
+public class IndexEstimate {
+    //the normal quantile of a two sided 95% interval
+    private static final double Z = 1.96;
+
+    private final String typeName;
+    private final double fraction;
+    private final long rowsSampled;
+    private final long entriesSampled;
+    private final long deletedVertices;
+    private final long mismatchedProperties;
+
+    /**
+     * @param typeName
+     * @param fraction: the fraction of the index rows sampled
+     * @param rowsSampled: the number of index rows read, for every key sampled together
+     * @param entriesSampled: the number of entries of the key in those rows
+     * @param deletedVertices: the entries found referencing deleted vertices
+     * @param mismatchedProperties: the entries found with a wrong or stale value
+     */
+    IndexEstimate(String typeName, double fraction, long rowsSampled, long entriesSampled,
+                  long deletedVertices, long mismatchedProperties) {
+        this.typeName = typeName;
+        this.fraction = fraction;
+        this.rowsSampled = rowsSampled;
+        this.entriesSampled = entriesSampled;
+        this.deletedVertices = deletedVertices;
+        this.mismatchedProperties = mismatchedProperties;
+    }
+
+    /**
+     * Returns the bounds of the 95% Wilson score interval of a proportion
+     *
+     * @param successes
+     * @param trials
+     * @return the lower and upper bound, 0 and 1 if there were no trials
+     */
+    static double[] wilson(long successes, long trials) {
+        if (trials == 0) return new double[] { 0, 1 };
+        double n = trials;
+        double p = successes / n;
+        double z2 = Z * Z;
+        double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        double margin = Z * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+        return new double[] { Math.max(0, center - margin), Math.min(1, center + margin) };
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public long getRowsSampled() {
+        return rowsSampled;
+    }
+
+    public long getEntriesSampled() {
+        return entriesSampled;
+    }
+
+    public long getDeletedVertices() {
+        return deletedVertices;
+    }
+
+    public long getMismatchedProperties() {
+        return mismatchedProperties;
+    }
+
+    /**
+     * Returns the fraction of the sampled entries that are wrong
+     *
+     * @return
+     */
+    public double getRate() {
+        return entriesSampled == 0 ? 0 : (double) (deletedVertices + mismatchedProperties) / entriesSampled;
+    }
+
+    public double getRateLow() {
+        return wilson(deletedVertices + mismatchedProperties, entriesSampled)[0];
+    }
+
+    public double getRateHigh() {
+        return wilson(deletedVertices + mismatchedProperties, entriesSampled)[1];
+    }
+
+    /**
+     * Returns the number of entries the whole index is estimated to hold
+     *
+     * @return
+     */
+    public long getEstimatedEntries() {
+        return fraction <= 0 ? 0 : Math.round(entriesSampled / fraction);
+    }
+
+    /**
+     * Returns the number of wrong entries the whole index is estimated to hold
+     *
+     * @return
+     */
+    public long getEstimatedProblems() {
+        return Math.round(getRate() * getEstimatedEntries());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "[%s] %.4f%% of %d sampled entries wrong (95%% interval %.4f%% to %.4f%%), about %d of %d entries",
+                typeName, getRate() * 100, entriesSampled, getRateLow() * 100, getRateHigh() * 100,
+                getEstimatedProblems(), getEstimatedEntries()
+        );
+    }
+}
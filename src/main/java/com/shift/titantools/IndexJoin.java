@@ -0,0 +1,245 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the indexes of some keys against the vertices in both directions,
+ * with two sequential scans and no point lookups.
+ *
+ * The index store is scanned for the entries of the keys, and the edge
+ * store for the vertices' values of the keys. Both sides are reduced to
+ * JoinRecords, sorted in runs on disk, and merge joined by vertex, key, the
+ * hash of the value's index row and the hash of its index column, which
+ * holds the property id. An index entry without a matching value points to
+ * a deleted vertex, to a value the vertex no longer has, or is left over
+ * from another property with the same value, and a value without a
+ * matching entry is missing from the index.
+ *
+ * Values are matched by a 64 bit hash, a collision could hide a wrong entry,
+ * but is unlikely enough to be ignored. Nothing is repaired, the findings
+ * hold what's needed to repair them with applyReport.
+ */
+class IndexJoin {
+    static final int DELETED_VERTICES = 0;
+    static final int STALE_ENTRIES = 1;
+    static final int MISMATCHED_PROPERTIES = 2;
+    static final int MISSING_ENTRIES = 3;
+    static final String[] COUNTER_NAMES = { "deletedVertices", "staleEntries", "mismatchedProperties", "missingEntries" };
+
+    private final TitanGraphTools tools;
+    private final StandardTitanGraph graph;
+    private final List<TitanKey> titanKeys;
+    private final Map<Long, String> keyNames = new HashMap<Long, String>();
+    private final File spillDirectory;
+    private final long spillBytes;
+
+    private final long[] counters = new long[COUNTER_NAMES.length];
+    private long indexEntries = 0;
+    private long vertexValues = 0;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKeys: the keys to check
+     * @param spillDirectory: where the sorted runs are written
+     * @param spillBytes: the heap the records buffered by all scan threads may take
+     */
+    IndexJoin(TitanGraphTools tools, StandardTitanGraph graph, List<TitanKey> titanKeys, File spillDirectory, long spillBytes) {
+        this.tools = tools;
+        this.graph = graph;
+        this.titanKeys = titanKeys;
+        for (TitanKey titanKey: titanKeys) keyNames.put(titanKey.getID(), titanKey.getName());
+        this.spillDirectory = spillDirectory;
+        this.spillBytes = spillBytes;
+    }
+
+    /**
+     * Scans both stores, then merges what they hold and reports the differences
+     *
+     * @throws RepairException
+     */
+    void run() throws RepairException {
+        int threads = tools.getScanThreads();
+        long perWorker = Math.max(1, spillBytes / threads);
+        StringBuilder names = new StringBuilder();
+        for (TitanKey titanKey: titanKeys) names.append(' ').append(titanKey.getName());
+
+        List<SortedRuns> indexRuns = new ArrayList<SortedRuns>(threads);
+        List<SortedRuns> vertexRuns = new ArrayList<SortedRuns>(threads);
+        List<File> indexFiles = null;
+        List<File> vertexFiles = null;
+        try {
+            List<JoinIndexWorker> indexWorkers = new ArrayList<JoinIndexWorker>(threads);
+            List<JoinVertexWorker> vertexWorkers = new ArrayList<JoinVertexWorker>(threads);
+            for (int i=0; i<threads; i++) {
+                SortedRuns runs = new SortedRuns(spillDirectory, "titan-tools-index", perWorker);
+                indexRuns.add(runs);
+                indexWorkers.add(new JoinIndexWorker(tools, graph, titanKeys, runs));
+                runs = new SortedRuns(spillDirectory, "titan-tools-vertex", perWorker);
+                vertexRuns.add(runs);
+                vertexWorkers.add(new JoinVertexWorker(tools, graph, titanKeys, tools.getReadTxSize(), runs));
+            }
+
+            InternalTitanTransaction itx = (InternalTitanTransaction) graph.newTransaction();
+            StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+            try {
+                KeyColumnValueStore indexStore = tools.getBackend().getVertexIndexStore();
+                new ParallelScanner(tools, "checkTypesByJoin index" + names, "index keys read", JoinIndexWorker.COUNTER_NAMES, false)
+                        .scan(indexStore, stx, indexWorkers);
+
+                KeyColumnValueStore edgeStore = tools.getBackend().getEdgeStore();
+                new ParallelScanner(tools, "checkTypesByJoin vertices" + names, "vertices read", JoinVertexWorker.COUNTER_NAMES, false)
+                        .scan(edgeStore, stx, vertexWorkers);
+            } finally {
+                itx.commit();
+            }
+
+            indexFiles = SortedRuns.reduce(allRuns(indexRuns), spillDirectory, "titan-tools-index");
+            vertexFiles = SortedRuns.reduce(allRuns(vertexRuns), spillDirectory, "titan-tools-vertex");
+            merge(indexFiles, vertexFiles);
+        } finally {
+            SortedRuns.delete(allRuns(indexRuns));
+            SortedRuns.delete(allRuns(vertexRuns));
+            if (indexFiles != null) SortedRuns.delete(indexFiles);
+            if (vertexFiles != null) SortedRuns.delete(vertexFiles);
+        }
+
+        long bytes = 0;
+        for (SortedRuns runs: indexRuns) bytes += runs.getByteCount();
+        for (SortedRuns runs: vertexRuns) bytes += runs.getByteCount();
+
+        System.out.println("");
+        System.out.println("[" + names.toString().trim() + "] join check completed");
+        System.out.println("  > " + indexEntries + " index entries and " + vertexValues + " vertex values joined, " + bytes / 1024 + "KB spilled");
+        System.out.println("  > " + counters[DELETED_VERTICES] + " references to deleted vertices detected");
+        System.out.println("  > " + counters[STALE_ENTRIES] + " entries for values vertices no longer have detected");
+        System.out.println("  > " + counters[MISMATCHED_PROPERTIES] + " incorrectly indexed vertex properties detected");
+        System.out.println("  > " + counters[MISSING_ENTRIES] + " missing index entries detected");
+    }
+
+    private static List<File> allRuns(List<SortedRuns> runs) {
+        List<File> files = new ArrayList<File>();
+        for (SortedRuns r: runs) files.addAll(r.getRuns());
+        return files;
+    }
+
+    /**
+     * Walks both sorted sides a vertex at a time, reporting the differences
+     */
+    private void merge(List<File> indexFiles, List<File> vertexFiles) throws RepairException {
+        SortedRuns.Merger index = new SortedRuns.Merger(indexFiles);
+        SortedRuns.Merger vertices = null;
+        ReportSink report = null;
+        List<JoinRecord> entries = new ArrayList<JoinRecord>();
+        List<JoinRecord> values = new ArrayList<JoinRecord>();
+        try {
+            vertices = new SortedRuns.Merger(vertexFiles);
+            report = ReportSink.open(tools.getReportFile());
+            while (index.peek() != null || vertices.peek() != null) {
+                long vertexId = nextVertex(index.peek(), vertices.peek());
+                take(index, vertexId, entries);
+                take(vertices, vertexId, values);
+                indexEntries += entries.size();
+
+                boolean exists = !values.isEmpty() && values.get(0).typeId == JoinRecord.EXISTS;
+                if (exists) values.remove(0);
+                vertexValues += values.size();
+                compare(vertexId, exists, entries, values, report);
+                entries.clear();
+                values.clear();
+            }
+        } finally {
+            index.close();
+            if (vertices != null) vertices.close();
+            if (report != null) report.close();
+        }
+    }
+
+    private static long nextVertex(JoinRecord a, JoinRecord b) {
+        if (a == null) return b.vertexId;
+        if (b == null) return a.vertexId;
+        return Math.min(a.vertexId, b.vertexId);
+    }
+
+    private static void take(SortedRuns.Merger merger, long vertexId, List<JoinRecord> into) throws RepairException {
+        while (merger.peek() != null && merger.peek().vertexId == vertexId) {
+            into.add(merger.next());
+        }
+    }
+
+    /**
+     * Compares the index entries of a vertex with its values, both sorted
+     * by key, value hash and column hash
+     */
+    private void compare(long vertexId, boolean exists, List<JoinRecord> entries, List<JoinRecord> values,
+                         ReportSink report) throws RepairException {
+        int i = 0;
+        int v = 0;
+        while (i < entries.size() || v < values.size()) {
+            JoinRecord entry = i < entries.size() ? entries.get(i) : null;
+            JoinRecord value = v < values.size() ? values.get(v) : null;
+            int c = entry == null ? 1 : value == null ? -1 : entry.compareTo(value);
+            if (c == 0) {
+                i++;
+                v++;
+            } else if (c < 0) {
+                //an entry without a value
+                String kind;
+                int counter;
+                if (!exists) {
+                    kind = Finding.DELETED_VERTEX;
+                    counter = DELETED_VERTICES;
+                } else if (hasValue(values, entry)) {
+                    //a duplicate, or left over from an earlier property with the same value
+                    kind = Finding.STALE_ENTRY;
+                    counter = STALE_ENTRIES;
+                } else if (hasKey(values, entry.typeId)) {
+                    kind = Finding.MISMATCHED_PROPERTY;
+                    counter = MISMATCHED_PROPERTIES;
+                } else {
+                    kind = Finding.STALE_ENTRY;
+                    counter = STALE_ENTRIES;
+                }
+                counters[counter]++;
+                report.report(new Finding(
+                        kind, vertexId, entry.typeId, keyNames.get(entry.typeId),
+                        ByteBuffer.wrap(entry.row), ByteBuffer.wrap(entry.column), null, false
+                ));
+                i++;
+            } else {
+                //a value without an entry
+                counters[MISSING_ENTRIES]++;
+                report.report(new Finding(
+                        Finding.MISSING_ENTRY, vertexId, value.typeId, keyNames.get(value.typeId), null, null, null, false
+                ));
+                v++;
+            }
+        }
+    }
+
+    private static boolean hasValue(List<JoinRecord> values, JoinRecord entry) {
+        for (JoinRecord value: values) {
+            if (value.sameValue(entry)) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasKey(List<JoinRecord> values, long typeId) {
+        for (JoinRecord value: values) {
+            if (value.typeId == typeId) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,175 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers additions to and deletions from the vertex index, and writes them
+ * out in a single transaction once the batch holds enough mutations or bytes.
+ *
+ * Additions are turned into index entries as soon as they're added, so the
+ * batch doesn't hold on to the properties, or the transactions they were
+ * loaded with.
+ */
+class IndexMutationBatch {
+    private final TitanGraphTools tools;
+    private final StandardTitanGraph graph;
+    private final KeyColumnValueStore indexStore;
+    private final Throttle throttle;
+    private final Backpressure backpressure;
+    private final int maxMutations;
+    private final long maxBytes;
+
+    private final Map<ByteBuffer, RowMutation> rows = new LinkedHashMap<ByteBuffer, RowMutation>();
+    private int mutations = 0;
+    private long bytes = 0;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param maxMutations: the number of added and deleted entries that fill the batch
+     * @param maxBytes: the size of the added and deleted entries that fill the batch
+     * @throws RepairException
+     */
+    public IndexMutationBatch(TitanGraphTools tools, StandardTitanGraph graph, int maxMutations, long maxBytes) throws RepairException {
+        this.tools = tools;
+        this.graph = graph;
+        this.indexStore = tools.getBackend().getVertexIndexStore();
+        this.throttle = tools.getThrottle();
+        this.backpressure = tools.getBackpressure();
+        this.maxMutations = maxMutations;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the index entry for the given property, the same entry the
+     * graph writes when the property is created
+     *
+     * @param property
+     * @throws RepairException
+     */
+    public void add(TitanProperty property) throws RepairException {
+        TitanKey key = property.getPropertyKey();
+        ByteBuffer column = key.isUnique()
+                ? tools.getKeyedIndexColumn(key)
+                : tools.getIndexColumn(key, property.getID());
+        Entry entry = new Entry(column, tools.getIndexValue(property));
+        row(tools.getIndexKey(property.getAttribute())).add(entry);
+        mutations++;
+        bytes += column.remaining() + entry.getValue().remaining();
+    }
+
+    /**
+     * Deletes the given index entry
+     *
+     * @param key: the index row
+     * @param column: the entry's column
+     */
+    public void delete(ByteBuffer key, ByteBuffer column) {
+        row(key).delete(column);
+        mutations++;
+        bytes += column.remaining();
+    }
+
+    private RowMutation row(ByteBuffer key) {
+        RowMutation row = rows.get(key);
+        if (row == null) {
+            row = new RowMutation();
+            rows.put(key, row);
+            bytes += key.remaining();
+        }
+        return row;
+    }
+
+    /**
+     * Returns true once the batch holds enough mutations or bytes to be flushed
+     *
+     * @return
+     */
+    public boolean isFull() {
+        return mutations >= maxMutations || bytes >= maxBytes;
+    }
+
+    /**
+     * Returns the number of buffered mutations
+     *
+     * @return
+     */
+    public int size() {
+        return mutations;
+    }
+
+    /**
+     * Writes out all buffered mutations in one transaction
+     *
+     * @throws RepairException
+     */
+    public void flush() throws RepairException {
+        if (rows.isEmpty()) return;
+        throttle.mutations(mutations);
+        throttle.bytes(bytes);
+
+        InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
+        try {
+            final StoreTransaction stx = ((BackendTransaction) tx.getTxHandle()).getStoreTransactionHandle();
+            for (final Map.Entry<ByteBuffer, RowMutation> row: rows.entrySet()) {
+                //mutations are idempotent, so a timed out one can be retried
+                backpressure.call(new Backpressure.StoreCall<Void>() {
+                    public Void call() throws StorageException {
+                        RowMutation mutation = row.getValue();
+                        indexStore.mutate(
+                                row.getKey(),
+                                mutation.additions.isEmpty() ? null : mutation.additions,
+                                mutation.deletions.isEmpty() ? null : mutation.deletions,
+                                stx
+                        );
+                        return null;
+                    }
+                });
+            }
+            tx.commit();
+        } catch (RepairException e) {
+            tx.abort();
+            throw e;
+        }
+
+        rows.clear();
+        mutations = 0;
+        bytes = 0;
+    }
+
+    /**
+     * The mutations of a single index row. Additions and deletions of the same
+     * column cancel out, the last one wins, the same as if they had been
+     * written one after the other.
+     */
+    private static class RowMutation {
+        final List<Entry> additions = new ArrayList<Entry>();
+        final List<ByteBuffer> deletions = new ArrayList<ByteBuffer>();
+
+        void add(Entry entry) {
+            deletions.remove(entry.getColumn());
+            additions.add(entry);
+        }
+
+        void delete(ByteBuffer column) {
+            for (int i=additions.size()-1; i>=0; i--) {
+                if (additions.get(i).getColumn().equals(column)) additions.remove(i);
+            }
+            deletions.add(column);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.diskstorage.util.ByteBufferUtil;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.VariableLong;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Checks, and optionally repairs, the index entries of one or more property
+ * keys for the rows handed to it by a ParallelScanner. The entries of all
+ * keys are read with a single slice per row.
+ */
+class IndexRepairWorker extends ScanWorker {
+    private final TitanGraphTools tools;
+    private final KeyColumnValueStore indexStore;
+    private final Throttle throttle;
+    private final Backpressure backpressure;
+    private final List<TitanKey> titanKeys;
+    private final Map<Long, Integer> keyPositions = new HashMap<Long, Integer>();
+    private final boolean repair;
+
+    //the column range covering the entries of every key
+    private final ByteBuffer sliceStart;
+    private final ByteBuffer sliceEnd;
+
+    private final InternalTitanTransaction itx;
+    private final StoreTransaction stx;
+
+    //the slices of the next rows are read ahead, while earlier rows are validated
+    private final ExecutorService prefetchPool;
+    private final int readAhead;
+    private final LinkedList<PrefetchedRow> prefetched = new LinkedList<PrefetchedRow>();
+
+    private final VertexBatchLookup lookup;
+    private final int lookupBatchSize;
+    private final List<PendingRow> window = new ArrayList<PendingRow>();
+    private int windowEntries = 0;
+
+    //repairs are buffered, and their rows only completed once they're written
+    private final StandardTitanGraph graph;
+    private final int repairBatchSize;
+    private final long repairBatchBytes;
+    private IndexMutationBatch repairs;
+    private final List<PendingRow> unflushed = new ArrayList<PendingRow>();
+
+    //full batches are written by the writer, while the next rows are validated
+    private final RepairWriter writer;
+    private final List<RepairWriter.Write> writes = new ArrayList<RepairWriter.Write>();
+
+    //the counters reported for every key, in the order the keys were given
+    static final int DELETED_VERTICES = 0;
+    static final int MISMATCHED_PROPERTIES = 1;
+    static final int ENTRIES = 2;
+    static final int COUNTERS_PER_KEY = 3;
+
+    /**
+     * Returns the names of the counters reported for the given keys
+     *
+     * @param titanKeys
+     * @return
+     */
+    static String[] counterNames(List<TitanKey> titanKeys) {
+        String[] names = new String[titanKeys.size() * COUNTERS_PER_KEY];
+        for (int i=0; i<titanKeys.size(); i++) {
+            names[i * COUNTERS_PER_KEY + DELETED_VERTICES] = titanKeys.get(i).getName() + ".deletedVertices";
+            names[i * COUNTERS_PER_KEY + MISMATCHED_PROPERTIES] = titanKeys.get(i).getName() + ".mismatchedProperties";
+            names[i * COUNTERS_PER_KEY + ENTRIES] = titanKeys.get(i).getName() + ".entries";
+        }
+        return names;
+    }
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKeys: the keys whose indexes are examined
+     * @param repair: inconsistencies are repaired if this is set to true
+     * @param lookup: resolves the vertices referenced by the index entries
+     * @param lookupBatchSize: the number of index entries collected before their vertices are looked up
+     * @param repairBatchSize: the number of index mutations buffered before they're written
+     * @param repairBatchBytes: the size of the index mutations buffered before they're written
+     * @param writer: writes the full batches of repairs
+     * @param prefetchPool: reads the slices of upcoming rows, or null to read each row when it's processed
+     * @param readAhead: the number of rows whose slices are read ahead of the row being processed
+     * @throws RepairException
+     */
+    public IndexRepairWorker(TitanGraphTools tools, StandardTitanGraph graph, List<TitanKey> titanKeys, boolean repair,
+                             VertexBatchLookup lookup, int lookupBatchSize,
+                             int repairBatchSize, long repairBatchBytes, RepairWriter writer,
+                             ExecutorService prefetchPool, int readAhead) throws RepairException {
+        this.tools = tools;
+        this.indexStore = tools.getBackend().getVertexIndexStore();
+        this.throttle = tools.getThrottle();
+        this.backpressure = tools.getBackpressure();
+        this.titanKeys = titanKeys;
+        this.repair = repair;
+        this.lookup = lookup;
+        this.lookupBatchSize = lookupBatchSize;
+        this.graph = graph;
+        this.repairBatchSize = repairBatchSize;
+        this.repairBatchBytes = repairBatchBytes;
+        this.repairs = new IndexMutationBatch(tools, graph, repairBatchSize, repairBatchBytes);
+        this.writer = writer;
+        this.prefetchPool = prefetchPool;
+        this.readAhead = readAhead;
+
+        for (int i=0; i<titanKeys.size(); i++) {
+            keyPositions.put(titanKeys.get(i).getID(), i);
+        }
+        ByteBuffer[] slice = sliceRange(titanKeys);
+        sliceStart = slice[0];
+        sliceEnd = slice[1];
+
+        itx = (InternalTitanTransaction) graph.newTransaction();
+        stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+    }
+
+    /**
+     * Returns the start and end of the column range holding the index
+     * entries of all the given keys
+     *
+     * @param titanKeys
+     * @return
+     */
+    static ByteBuffer[] sliceRange(List<TitanKey> titanKeys) {
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        for (TitanKey titanKey: titanKeys) {
+            //index columns are prefixed with the key id, which is a self delimiting
+            //encoding, so the entries of all keys fall between the smallest prefix
+            //and the buffer following the largest one
+            ByteBuffer prefix = VariableLong.positiveByteBuffer(titanKey.getID());
+            if (first == null || ByteBuffers.compare(prefix, first) < 0) first = prefix;
+            if (last == null || ByteBuffers.compare(prefix, last) > 0) last = prefix;
+        }
+        return new ByteBuffer[] { first, ByteBufferUtil.nextBiggerBuffer(last) };
+    }
+
+    @Override
+    public void processKey(long seq, ByteBuffer key) throws RepairException {
+        if (prefetchPool == null) {
+            long start = System.nanoTime();
+            List<Entry> columns = readSlice(key);
+            timed("slice", start);
+            addRow(seq, key, columns);
+            return;
+        }
+
+        prefetched.add(new PrefetchedRow(seq, key, prefetchPool.submit(new SliceRead(key))));
+        if (prefetched.size() > readAhead) {
+            addPrefetched();
+        }
+    }
+
+    /**
+     * Reads the entries of the examined keys from an index row
+     *
+     * @param key
+     * @return
+     * @throws RepairException
+     */
+    private List<Entry> readSlice(final ByteBuffer key) throws RepairException {
+        return backpressure.call(new Backpressure.StoreCall<List<Entry>>() {
+            public List<Entry> call() throws StorageException {
+                return indexStore.getSlice(key, sliceStart.duplicate(), sliceEnd.duplicate(), stx);
+            }
+        });
+    }
+
+    /**
+     * Waits for the slice of the oldest row read ahead, and adds the row to
+     * the window. Only the time spent waiting counts towards the slice phase.
+     *
+     * @throws RepairException if the slice couldn't be read
+     */
+    private void addPrefetched() throws RepairException {
+        PrefetchedRow next = prefetched.removeFirst();
+        long start = System.nanoTime();
+        List<Entry> columns = backpressure.await(next.columns);
+        timed("slice", start);
+        addRow(next.seq, next.key, columns);
+    }
+
+    /**
+     * Adds a row to the window, validating the window once it holds enough entries
+     *
+     * @param seq
+     * @param key
+     * @param columns: the row's slice
+     * @throws RepairException
+     */
+    private void addRow(long seq, ByteBuffer key, List<Entry> columns) throws RepairException {
+        throttle.entries(columns);
+        PendingRow row = new PendingRow(seq, key, columns);
+        window.add(row);
+        windowEntries += row.size();
+
+        if (windowEntries >= lookupBatchSize) {
+            flushWindow();
+        }
+    }
+
+    /**
+     * Resolves the vertices referenced by all rows in the window at once,
+     * then validates and repairs each row
+     *
+     * @throws RepairException
+     */
+    private void flushWindow() throws RepairException {
+        if (window.isEmpty()) return;
+
+        Map<Long, Set<TitanKey>> requests = new LinkedHashMap<Long, Set<TitanKey>>(windowEntries);
+        for (PendingRow row: window) {
+            for (int i=0; i<row.size(); i++) {
+                Set<TitanKey> keys = requests.get(row.vertexIds[i]);
+                if (keys == null) {
+                    keys = new LinkedHashSet<TitanKey>();
+                    requests.put(row.vertexIds[i], keys);
+                }
+                TitanKey titanKey = titanKeys.get(row.keyPositions[i]);
+                if (!isSystemKey(titanKey)) keys.add(titanKey);
+            }
+        }
+
+        long start = System.nanoTime();
+        VertexBatchLookup.Batch vertices = lookup.lookup(requests);
+        timed("lookup", start);
+        try {
+            for (PendingRow row: window) {
+                int mutationsBefore = repairs.size();
+                row.counts = validateRow(row, vertices);
+                if (repairs.size() == mutationsBefore) {
+                    //nothing to write, so the row is already done
+                    completed(row.seq, row.key, row.counts);
+                } else {
+                    unflushed.add(row);
+                    if (repairs.isFull()) flushRepairs();
+                }
+            }
+        } finally {
+            vertices.close();
+        }
+
+        window.clear();
+        windowEntries = 0;
+    }
+
+    /**
+     * Hands the buffered repairs to the writer, which completes the rows they
+     * were made for once they're written, and starts a new batch
+     *
+     * @throws RepairException if this or an earlier batch couldn't be written
+     */
+    private void flushRepairs() throws RepairException {
+        if (!unflushed.isEmpty()) {
+            IndexMutationBatch batch = repairs;
+            final List<PendingRow> rows = new ArrayList<PendingRow>(unflushed);
+            repairs = new IndexMutationBatch(tools, graph, repairBatchSize, repairBatchBytes);
+            unflushed.clear();
+
+            writes.add(writer.submit(batch, new RepairWriter.Callback() {
+                public void written(long startNanos) throws RepairException {
+                    timed("write", startNanos);
+                    for (PendingRow row: rows) {
+                        completed(row.seq, row.key, row.counts, true);
+                    }
+                }
+            }));
+        }
+        RepairWriter.Write.collect(writes, false);
+    }
+
+    /**
+     * Validates the entries of a row, and buffers repairs for them if needed
+     *
+     * @param row
+     * @param vertices: the vertices referenced by the row
+     * @return the counters for the row, or null if it has no entries of the keys
+     * @throws RepairException
+     */
+    private long[] validateRow(PendingRow row, VertexBatchLookup.Batch vertices) throws RepairException {
+        long[] counts = null;
+        ByteBuffer key = row.key;
+
+        for (int i=0; i<row.size(); i++) {
+            Entry entry = row.entries.get(i);
+            long eid = row.vertexIds[i];
+            TitanKey titanKey = titanKeys.get(row.keyPositions[i]);
+            int counterOffset = row.keyPositions[i] * COUNTERS_PER_KEY;
+            counts = increment(counts, counterOffset + ENTRIES);
+            if (!vertices.exists(eid)) {
+                if (repair) repairs.delete(key, entry.getColumn());
+                report(new Finding(Finding.DELETED_VERTEX, eid, titanKey.getID(), titanKey.getName(), key, entry.getColumn(), null, repair));
+                counts = increment(counts, counterOffset + DELETED_VERTICES);
+            } else if (!isSystemKey(titanKey)) {
+                //verify that the given property matches
+                TitanProperty property = vertices.getProperty(eid, titanKey);
+                if (property == null) {
+                    //the vertex no longer has the property, the entry is stale
+                    if (repair) repairs.delete(key, entry.getColumn());
+                    report(new Finding(Finding.STALE_ENTRY, eid, titanKey.getID(), titanKey.getName(), key, entry.getColumn(), null, repair));
+                    counts = increment(counts, counterOffset + MISMATCHED_PROPERTIES);
+                    continue;
+                }
+                //compared in place, nothing is copied per entry
+                ByteBuffer indexKey = tools.getIndexKey(property.getAttribute());
+                if (!ByteBuffers.equals(key, indexKey)) {
+                    if (repair) {
+                        repairs.delete(key, entry.getColumn());
+                        repairs.add(property);
+                    }
+                    report(new Finding(
+                            Finding.MISMATCHED_PROPERTY, eid, titanKey.getID(), titanKey.getName(), key, entry.getColumn(),
+                            String.valueOf(property.getAttribute()), repair
+                    ));
+                    counts = increment(counts, counterOffset + MISMATCHED_PROPERTIES);
+                } else if (!titanKey.isUnique()
+                        && !ByteBuffers.equals(entry.getColumn(), tools.getIndexColumn(titanKey, property.getID()))) {
+                    //the right value, but written for another property, so a
+                    //duplicate or left over from a property that was replaced
+                    if (repair) repairs.delete(key, entry.getColumn());
+                    report(new Finding(Finding.STALE_ENTRY, eid, titanKey.getID(), titanKey.getName(), key, entry.getColumn(), null, repair));
+                    counts = increment(counts, counterOffset + MISMATCHED_PROPERTIES);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private long[] increment(long[] counts, int counter) {
+        if (counts == null) counts = new long[titanKeys.size() * COUNTERS_PER_KEY];
+        counts[counter]++;
+        return counts;
+    }
+
+    private static boolean isSystemKey(TitanKey titanKey) {
+        return titanKey.getName().startsWith("#");
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        while (!prefetched.isEmpty()) {
+            addPrefetched();
+        }
+        flushWindow();
+        flushRepairs();
+        RepairWriter.Write.collect(writes, true);
+        itx.commit();
+    }
+
+    @Override
+    public void abort() {
+        for (PrefetchedRow row: prefetched) {
+            row.columns.cancel(true);
+        }
+        prefetched.clear();
+        itx.abort();
+    }
+
+    /**
+     * Reads a row's slice on the prefetch pool
+     */
+    private class SliceRead implements Callable<List<Entry>> {
+        private final ByteBuffer key;
+
+        SliceRead(ByteBuffer key) {
+            this.key = key;
+        }
+
+        public List<Entry> call() throws RepairException {
+            backpressure.enter();
+            try {
+                return readSlice(key);
+            } finally {
+                backpressure.exit();
+            }
+        }
+    }
+
+    /**
+     * An index row whose slice is being read ahead
+     */
+    private static class PrefetchedRow {
+        final long seq;
+        final ByteBuffer key;
+        final Future<List<Entry>> columns;
+
+        PrefetchedRow(long seq, ByteBuffer key, Future<List<Entry>> columns) {
+            this.seq = seq;
+            this.key = key;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * An index row whose entries for the examined keys are waiting to be validated
+     */
+    private class PendingRow {
+        final long seq;
+        final ByteBuffer key;
+        final List<Entry> entries;
+        final long[] vertexIds;
+        final int[] keyPositions;
+        long[] counts;
+
+        PendingRow(long seq, ByteBuffer key, List<Entry> columns) {
+            this.seq = seq;
+            this.key = key;
+            this.entries = new ArrayList<Entry>(columns.size());
+            long[] ids = new long[columns.size()];
+            int[] positions = new int[columns.size()];
+            for (Entry entry: columns) {
+                //the slice can include the entries of keys that weren't asked for
+                Integer position = IndexRepairWorker.this.keyPositions.get(
+                        VariableLong.readPositive(entry.getColumn().duplicate())
+                );
+                if (position == null) continue;
+                positions[entries.size()] = position;
+                ids[entries.size()] = VariableLong.readPositive(entry.getValue().duplicate());
+                entries.add(entry);
+            }
+            this.vertexIds = ids;
+            this.keyPositions = positions;
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanLabel;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.core.TitanType;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that every value of a property key held by the vertices handed to
+ * it by a ParallelScanner has its index entry, and optionally adds the
+ * entries that are missing. This is the vertex to index direction that
+ * IndexRepairWorker doesn't cover, and unlike ReindexWorker only the missing
+ * entries are written.
+ *
+ * The expected entries of several vertices are collected into a window,
+ * and read back together through an IndexEntryLookup once the window holds
+ * enough of them, the way IndexRepairWorker batches its vertex lookups.
+ * Missing entries are buffered, and their rows only completed once they're
+ * written, the same as IndexRepairWorker's repairs.
+ */
+class IndexVerifyWorker extends ScanWorker {
+    static final int MISSING_ENTRIES = 0;
+    static final int CONFLICTING_ENTRIES = 1;
+    static final String[] COUNTER_NAMES = { "missingEntries", "conflictingEntries" };
+
+    private final TitanGraphTools tools;
+    private final StandardTitanGraph graph;
+    private final TitanKey titanKey;
+    private final boolean repair;
+    private final KeyColumnValueStore indexStore;
+    private final Throttle throttle;
+    private final IndexEntryLookup lookup;
+    private final int lookupBatchSize;
+    private final int readTxSize;
+
+    private InternalTitanTransaction readTx;
+    private StoreTransaction stx;
+    private int readTxVertices = 0;
+
+    //vertices whose expected entries haven't been read back yet
+    private final List<PendingVertex> window = new ArrayList<PendingVertex>();
+    private int windowEntries = 0;
+
+    private final IndexMutationBatch repairs;
+    private final LongList unflushedSeqs = new LongList();
+    private final List<ByteBuffer> unflushedKeys = new ArrayList<ByteBuffer>();
+    private final List<long[]> unflushedCounts = new ArrayList<long[]>();
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKey: the key whose values are looked up in the index
+     * @param repair: missing entries are added if this is set to true
+     * @param lookup: reads back the expected entries of a window
+     * @param lookupBatchSize: the number of expected entries collected before they're read back
+     * @param readTxSize: the number of vertices read per transaction
+     * @param repairBatchSize: the number of index entries buffered before they're written
+     * @param repairBatchBytes: the size of the index entries buffered before they're written
+     * @throws RepairException
+     */
+    public IndexVerifyWorker(TitanGraphTools tools, StandardTitanGraph graph, TitanKey titanKey, boolean repair,
+                             IndexEntryLookup lookup, int lookupBatchSize,
+                             int readTxSize, int repairBatchSize, long repairBatchBytes) throws RepairException {
+        this.tools = tools;
+        this.graph = graph;
+        this.titanKey = titanKey;
+        this.repair = repair;
+        this.indexStore = tools.getBackend().getVertexIndexStore();
+        this.throttle = tools.getThrottle();
+        this.lookup = lookup;
+        this.lookupBatchSize = lookupBatchSize;
+        this.readTxSize = readTxSize;
+        this.repairs = new IndexMutationBatch(tools, graph, repairBatchSize, repairBatchBytes);
+        beginRead();
+    }
+
+    private void beginRead() {
+        readTx = (InternalTitanTransaction) graph.newTransaction();
+        stx = ((BackendTransaction) readTx.getTxHandle()).getStoreTransactionHandle();
+        readTxVertices = 0;
+    }
+
+    @Override
+    public void processKey(long seq, ByteBuffer key) throws RepairException {
+        //the window holds properties of the read transaction, so it's read
+        //back first, the batch holds index entries rather than properties,
+        //so the transaction can be replaced with repairs still buffered
+        if (readTxVertices++ >= readTxSize) {
+            flushWindow();
+            readTx.commit();
+            beginRead();
+        }
+
+        long start = System.nanoTime();
+        PendingVertex pending = new PendingVertex(seq, key);
+        TitanVertex v = readTx.getVertex(IDHandler.getKeyID(key));
+        if (v != null && !(v instanceof TitanType) && !(v instanceof TitanKey) && !(v instanceof TitanLabel)) {
+            pending.vertexId = v.getID();
+            for (TitanProperty property: v.getProperties(titanKey.getName())) {
+                pending.properties.add(property);
+                pending.indexKeys.add(tools.getIndexKey(property.getAttribute()));
+                pending.columns.add(titanKey.isUnique()
+                        ? tools.getKeyedIndexColumn(titanKey)
+                        : tools.getIndexColumn(titanKey, property.getID()));
+            }
+        }
+        timed("verify", start);
+
+        window.add(pending);
+        windowEntries += pending.properties.size();
+        if (windowEntries >= lookupBatchSize) {
+            flushWindow();
+        }
+    }
+
+    /**
+     * Reads back the expected entries of every vertex in the window at
+     * once, then verifies and completes each vertex
+     *
+     * @throws RepairException
+     */
+    private void flushWindow() throws RepairException {
+        if (window.isEmpty()) return;
+
+        List<ByteBuffer> indexKeys = new ArrayList<ByteBuffer>(windowEntries);
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>(windowEntries);
+        for (PendingVertex pending: window) {
+            indexKeys.addAll(pending.indexKeys);
+            columns.addAll(pending.columns);
+        }
+
+        long start = System.nanoTime();
+        List<List<Entry>> found = lookup.lookup(indexKeys, columns, stx);
+        timed("lookup", start);
+
+        start = System.nanoTime();
+        int next = 0;
+        for (PendingVertex pending: window) {
+            long[] counts = null;
+            int mutationsBefore = repairs.size();
+            for (int i=0; i<pending.properties.size(); i++) {
+                counts = verify(pending, i, found.get(next++), counts);
+            }
+
+            if (repairs.size() == mutationsBefore) {
+                completed(pending.seq, pending.key, counts);
+            } else {
+                unflushedSeqs.add(pending.seq);
+                unflushedKeys.add(pending.key);
+                unflushedCounts.add(counts);
+                if (repairs.isFull()) flushRepairs();
+            }
+        }
+        timed("verify", start);
+
+        window.clear();
+        windowEntries = 0;
+    }
+
+    /**
+     * Checks the index entry read back for one of a vertex's properties
+     *
+     * @param pending: the vertex
+     * @param i: the position of the property in the vertex's properties
+     * @param entries: the columns found where the property's entry should be
+     * @param counts: the counters of the row so far, or null
+     * @return the counters of the row, or null if no problems were found
+     * @throws RepairException
+     */
+    private long[] verify(PendingVertex pending, int i, List<Entry> entries, long[] counts) throws RepairException {
+        TitanProperty property = pending.properties.get(i);
+        ByteBuffer indexKey = pending.indexKeys.get(i);
+        ByteBuffer column = pending.columns.get(i);
+        throttle.entries(entries);
+
+        if (entries.isEmpty()) {
+            if (repair) repairs.add(property);
+            report(new Finding(
+                    Finding.MISSING_ENTRY, pending.vertexId, titanKey.getID(), titanKey.getName(), indexKey, column,
+                    String.valueOf(property.getAttribute()), repair
+            ));
+            return increment(counts, MISSING_ENTRIES);
+        }
+        if (!ByteBuffers.equals(entries.get(0).getValue(), tools.getIndexValue(property))) {
+            //a unique value indexed to another vertex, which of the two is
+            //right can't be told from here, so it's left for repairType
+            report(new Finding(
+                    Finding.CONFLICTING_ENTRY, pending.vertexId, titanKey.getID(), titanKey.getName(), indexKey, column,
+                    String.valueOf(property.getAttribute()), false
+            ));
+            return increment(counts, CONFLICTING_ENTRIES);
+        }
+        return counts;
+    }
+
+    private static long[] increment(long[] counts, int counter) {
+        if (counts == null) counts = new long[COUNTER_NAMES.length];
+        counts[counter]++;
+        return counts;
+    }
+
+    /**
+     * Writes out the buffered entries, and completes the rows they were added for
+     *
+     * @throws RepairException
+     */
+    private void flushRepairs() throws RepairException {
+        long start = System.nanoTime();
+        repairs.flush();
+        timed("write", start);
+        for (int i=0; i<unflushedSeqs.size(); i++) {
+            completed(unflushedSeqs.get(i), unflushedKeys.get(i), unflushedCounts.get(i));
+        }
+        unflushedSeqs.clear();
+        unflushedKeys.clear();
+        unflushedCounts.clear();
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        flushWindow();
+        flushRepairs();
+        readTx.commit();
+    }
+
+    @Override
+    public void abort() {
+        window.clear();
+        readTx.abort();
+    }
+
+    /**
+     * A vertex whose expected index entries are waiting to be read back
+     */
+    private static class PendingVertex {
+        final long seq;
+        final ByteBuffer key;
+        long vertexId;
+        final List<TitanProperty> properties = new ArrayList<TitanProperty>(1);
+        final List<ByteBuffer> indexKeys = new ArrayList<ByteBuffer>(1);
+        final List<ByteBuffer> columns = new ArrayList<ByteBuffer>(1);
+
+        PendingVertex(long seq, ByteBuffer key) {
+            this.seq = seq;
+            this.key = key;
+        }
+    }
+}
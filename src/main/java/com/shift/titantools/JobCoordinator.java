@@ -0,0 +1,551 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.ConsistencyLevel;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStoreManager;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.diskstorage.util.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads a repairType, reindexType or cleanVertices job over any number of
+ * processes, on any number of hosts, sharing the graph's storage backend.
+ *
+ * The job is cut into a fixed number of ranges, the shards of setShard. The
+ * titan 0.2 store interface can only iterate over every key of a store, so
+ * a range is a hash of the keys rather than a span of them: every range
+ * reads all the keys, and only slices and processes the rows that fall in
+ * it. Reading keys is cheap next to processing rows, but a job cut into N
+ * ranges does read the keys N times over.
+ *
+ * The leases on the ranges, and which ranges are done, are kept in a row of the
+ * titan_tools_jobs column family, created next to titan's own. Every process
+ * runs the same job, with the same name and number of ranges, and repeatedly
+ * claims a range nobody holds, scans it, and marks it done, until every
+ * range is done. A lease is kept alive by a heartbeat, and expires if its
+ * holder dies, so the range is claimed again by another process.
+ *
+ * The store can't compare and set, so a claim is written, and read back
+ * after claimWait along with any competing claim. The oldest live claim
+ * wins, as with titan's own locks, which assumes the clocks of the processes
+ * are closer together than claimWait. A heartbeat that finds its claim gone,
+ * or too close to expiring to be renewed safely, stops the scan of its
+ * range, and a range is only marked done once its claim has been read back
+ * as still held, so a process that stalls past its lease leaves the range
+ * to whoever took it over. Progress within a range isn't kept, so a range
+ * taken over is scanned again from the start.
+ */
+public class JobCoordinator {
+    static final String STORE_NAME = "titan_tools_jobs";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String RANGES = "ranges";
+    private static final String CLAIM = "claim:";
+    private static final String DONE = "done:";
+
+    private final TitanGraphTools tools;
+    private final KeyColumnValueStoreManager storeManager;
+    private final KeyColumnValueStore store;
+    private final Backpressure backpressure;
+    private final String job;
+    private final ByteBuffer rowKey;
+    private final int ranges;
+    private final String workerId;
+
+    private long leaseMillis = 60000;
+    private long claimWaitMillis = 1000;
+
+    /**
+     * @param tools: runs the scans
+     * @param job: identifies the job, every process running it must use the same name
+     * @param ranges: the number of ranges the job is cut into
+     * @param workerId: identifies this process, it must be unique among the processes running the job
+     * @throws RepairException if the job was started with a different number of ranges
+     */
+    JobCoordinator(TitanGraphTools tools, String job, int ranges, String workerId) throws RepairException {
+        if (ranges < 1) throw new IllegalArgumentException("a job needs at least one range");
+        this.tools = tools;
+        this.backpressure = tools.getBackpressure();
+        this.storeManager = GraphAccessors.getStoreManager(tools.getBackend());
+        this.store = backpressure.retry(new Backpressure.StoreCall<KeyColumnValueStore>() {
+            public KeyColumnValueStore call() throws StorageException {
+                return storeManager.openDatabase(STORE_NAME);
+            }
+        });
+        this.job = job;
+        this.rowKey = encode(job);
+        this.ranges = ranges;
+        this.workerId = workerId;
+
+        ByteBuffer recorded = get(RANGES);
+        if (recorded == null) {
+            write(RANGES, longValue(ranges));
+        } else if (recorded.getLong(recorded.position()) != ranges) {
+            throw new RepairException(
+                    "the job [" + job + "] was started with " + recorded.getLong(recorded.position()) + " ranges, not " + ranges
+            );
+        }
+    }
+
+    /**
+     * Sets how long a lease lasts without a heartbeat, heartbeats are sent
+     * three times as often
+     *
+     * @param leaseMillis
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        if (leaseMillis < 3) throw new IllegalArgumentException("the lease must be at least 3ms");
+        this.leaseMillis = leaseMillis;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Sets how long a claim waits for competing claims before it's settled,
+     * this must be longer than the clocks of the processes are apart
+     *
+     * @param claimWaitMillis
+     */
+    public void setClaimWaitMillis(long claimWaitMillis) {
+        this.claimWaitMillis = claimWaitMillis;
+    }
+
+    public long getClaimWaitMillis() {
+        return claimWaitMillis;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Repairs the indexes of the given types, a range at a time, see TitanGraphTools.repairTypes
+     *
+     * @param typeNames
+     * @throws RepairException
+     */
+    public void repairTypes(final String... typeNames) throws RepairException {
+        run(new Task() {
+            public void run(JobRange range) throws RepairException {
+                tools.repairTypes(tools.getTypes(typeNames), null, true, range);
+            }
+        });
+    }
+
+    /**
+     * Checks the indexes of the given types, a range at a time, see TitanGraphTools.checkTypes
+     *
+     * @param typeNames
+     * @throws RepairException
+     */
+    public void checkTypes(final String... typeNames) throws RepairException {
+        run(new Task() {
+            public void run(JobRange range) throws RepairException {
+                tools.repairTypes(tools.getTypes(typeNames), null, false, range);
+            }
+        });
+    }
+
+    /**
+     * Reindexes the given type, a range at a time, see TitanGraphTools.reindexType
+     *
+     * @param typeName
+     * @throws RepairException
+     */
+    public void reindexType(final String typeName) throws RepairException {
+        run(new Task() {
+            public void run(JobRange range) throws RepairException {
+                tools.reindexType(tools.getTypes(typeName).get(0), range);
+            }
+        });
+    }
+
+    /**
+     * Removes partially deleted vertices, a range at a time, see TitanGraphTools.cleanVertices
+     *
+     * @param repair: the vertices are only reported if this is false
+     * @throws RepairException
+     */
+    public void cleanVertices(final boolean repair) throws RepairException {
+        run(new Task() {
+            public void run(JobRange range) throws RepairException {
+                tools.cleanVertices(repair, null, range);
+            }
+        });
+    }
+
+    public void cleanVertices() throws RepairException {
+        cleanVertices(true);
+    }
+
+    public void checkVertices() throws RepairException {
+        cleanVertices(false);
+    }
+
+    /**
+     * Returns the number of ranges of the job that are done
+     *
+     * @return
+     * @throws RepairException
+     */
+    public int getCompletedRanges() throws RepairException {
+        return slice(DONE).size();
+    }
+
+    /**
+     * Removes the job's leases and progress, so it can be run again
+     *
+     * @throws RepairException
+     */
+    public void reset() throws RepairException {
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>();
+        for (Entry entry: slice(CLAIM)) columns.add(entry.getColumn());
+        for (Entry entry: slice(DONE)) columns.add(entry.getColumn());
+        if (!columns.isEmpty()) mutate(null, columns);
+    }
+
+    /**
+     * Claims and runs ranges until every range of the job is done. Each
+     * range is scanned in place of the shard of the tools, and without their
+     * checkpoint and watermark, as the job's progress is kept per range, in
+     * the store. The settings of the tools aren't changed.
+     */
+    private void run(Task task) throws RepairException {
+        int ran = 0;
+        Lease lease;
+        while ((lease = claim()) != null) {
+            System.out.println("[" + job + "] " + workerId + " claimed range " + (lease.range + 1) + "/" + ranges);
+            lease.start();
+            try {
+                task.run(lease.jobRange);
+            } catch (RepairException e) {
+                if (!lease.isLost()) throw e;
+            } catch (RuntimeException e) {
+                if (!lease.isLost()) throw e;
+            } finally {
+                lease.stop();
+            }
+
+            if (lease.isHeld()) {
+                write(DONE + rangeName(lease.range), encode(workerId));
+                ran++;
+            } else {
+                System.out.println("[" + job + "] " + workerId + " lost range " + (lease.range + 1) + "/" + ranges + ", it's left to its new holder");
+            }
+            delete(lease.column);
+        }
+        System.out.println("[" + job + "] completed, " + ran + " of " + ranges + " ranges run by " + workerId);
+    }
+
+    /**
+     * Claims a range that isn't done and isn't held by a live lease, waiting
+     * for leases to expire if there's none
+     *
+     * @return the lease, or null once every range is done
+     * @throws RepairException
+     */
+    private Lease claim() throws RepairException {
+        while (true) {
+            boolean[] done = new boolean[ranges];
+            boolean[] held = new boolean[ranges];
+            int doneCount = 0;
+            long now = System.currentTimeMillis();
+            for (Entry entry: slice("")) {
+                String column = decode(entry.getColumn());
+                if (column.startsWith(DONE)) {
+                    done[rangeOf(column, DONE)] = true;
+                    doneCount++;
+                } else if (column.startsWith(CLAIM) && expiry(entry.getValue()) > now) {
+                    held[rangeOf(column, CLAIM)] = true;
+                }
+            }
+            if (doneCount >= ranges) return null;
+
+            //start from a different range in every process, so claims rarely collide
+            List<Integer> candidates = new ArrayList<Integer>();
+            for (int i=0; i<ranges; i++) {
+                if (!done[i] && !held[i]) candidates.add(i);
+            }
+            Collections.rotate(candidates, -((workerId.hashCode() & Integer.MAX_VALUE) % Math.max(1, candidates.size())));
+
+            for (int range: candidates) {
+                Lease lease = tryClaim(range);
+                if (lease != null) return lease;
+            }
+
+            //the remaining ranges are held by others, one may die and let its lease expire
+            sleep(Math.max(claimWaitMillis, leaseMillis / 3));
+        }
+    }
+
+    /**
+     * Writes a claim on the given range, and settles it against competing claims
+     *
+     * @param range
+     * @return the lease, or null if another process won the range
+     * @throws RepairException
+     */
+    private Lease tryClaim(int range) throws RepairException {
+        String prefix = CLAIM + rangeName(range) + ":";
+        String column = prefix + workerId;
+        long claimedAt = System.currentTimeMillis();
+        write(column, claim(claimedAt, claimedAt + leaseMillis));
+        sleep(claimWaitMillis);
+
+        List<ByteBuffer> expired = new ArrayList<ByteBuffer>();
+        String winner = holder(range, expired);
+        if (!expired.isEmpty()) mutate(null, expired);
+
+        if (workerId.equals(winner)) {
+            //the range may have been finished by the process whose lease just expired
+            if (get(DONE + rangeName(range)) == null) return new Lease(range, column, claimedAt);
+        }
+        delete(column);
+        return null;
+    }
+
+    /**
+     * Returns the worker holding the given range, the one with the oldest
+     * live claim, ties going to the lowest worker id
+     *
+     * @param range
+     * @param expired: collects the expired claims of other workers, or null
+     * @return the worker id, or null if the range has no live claim
+     * @throws RepairException
+     */
+    private String holder(int range, List<ByteBuffer> expired) throws RepairException {
+        String prefix = CLAIM + rangeName(range) + ":";
+        long now = System.currentTimeMillis();
+        String winner = null;
+        long winnerClaimedAt = Long.MAX_VALUE;
+        for (Entry entry: slice(prefix)) {
+            String claimant = decode(entry.getColumn()).substring(prefix.length());
+            if (expiry(entry.getValue()) <= now) {
+                if (expired != null && !claimant.equals(workerId)) expired.add(entry.getColumn());
+                continue;
+            }
+            long at = entry.getValue().getLong(entry.getValue().position());
+            if (at < winnerClaimedAt || (at == winnerClaimedAt && claimant.compareTo(winner) < 0)) {
+                winner = claimant;
+                winnerClaimedAt = at;
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * A range held by this process, kept alive by a heartbeat while it's
+     * scanned. If the heartbeat finds the lease lost, it cancels the job
+     * range, which stops the scan before its next key.
+     */
+    private class Lease {
+        final int range;
+        final String column;
+        final long claimedAt;
+        final JobRange jobRange;
+        private ScheduledExecutorService heartbeat;
+        private boolean lost = false;
+        private boolean stopped = false;
+
+        Lease(int range, String column, long claimedAt) {
+            this.range = range;
+            this.column = column;
+            this.claimedAt = claimedAt;
+            this.jobRange = new JobRange(range, ranges);
+        }
+
+        void start() {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("titan-tools-lease"));
+            long period = leaseMillis / 3;
+            heartbeat.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    beat();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void beat() {
+            try {
+                //a claim that's gone, or expires before a renewal is sure to
+                //land, may have been taken over, and mustn't be brought back
+                ByteBuffer current = get(column);
+                long now = System.currentTimeMillis();
+                if (current == null || expiry(current) - now < claimWaitMillis) {
+                    lose();
+                    return;
+                }
+                write(column, claim(claimedAt, now + leaseMillis));
+            } catch (RepairException e) {
+                //the next beat may get through before the lease expires
+                System.out.println("[" + job + "] lease heartbeat for range " + (range + 1) + " failed: " + e.getMessage());
+            }
+        }
+
+        private synchronized void lose() {
+            if (lost || stopped) return;
+            lost = true;
+            System.out.println("[" + job + "] " + workerId + " lost its lease on range " + (range + 1) + ", stopping its scan");
+            heartbeat.shutdown();
+            jobRange.cancel();
+        }
+
+        synchronized boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Stops the heartbeat, waiting for a beat in progress, so it can't
+         * write the claim back once it's deleted
+         */
+        void stop() {
+            synchronized (this) {
+                stopped = true;
+            }
+            //a beat is left to finish rather than interrupted in the middle of a store call
+            heartbeat.shutdown();
+            try {
+                heartbeat.awaitTermination(leaseMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Reads the claims on the range back, once the heartbeat is stopped,
+         * to make sure this process still holds it, with time to spare
+         *
+         * @return
+         * @throws RepairException
+         */
+        boolean isHeld() throws RepairException {
+            if (isLost()) return false;
+            ByteBuffer current = get(column);
+            if (current == null || expiry(current) - System.currentTimeMillis() < claimWaitMillis) return false;
+            return workerId.equals(holder(range, null));
+        }
+    }
+
+    private interface Task {
+        void run(JobRange range) throws RepairException;
+    }
+
+    private static String rangeName(int range) {
+        //zero padded, so the columns of the ranges sort in order
+        return String.format("%08d", range);
+    }
+
+    private static int rangeOf(String column, String prefix) {
+        return Integer.parseInt(column.substring(prefix.length(), prefix.length() + 8));
+    }
+
+    private static ByteBuffer claim(long claimedAt, long expiry) {
+        ByteBuffer value = ByteBuffer.allocate(16);
+        value.putLong(claimedAt).putLong(expiry);
+        value.flip();
+        return value;
+    }
+
+    private static long expiry(ByteBuffer claim) {
+        return claim.getLong(claim.position() + 8);
+    }
+
+    private static ByteBuffer longValue(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer encode(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF8));
+    }
+
+    private static String decode(ByteBuffer buffer) {
+        return new String(ByteBuffers.toArray(buffer), UTF8);
+    }
+
+    private static void sleep(long millis) throws RepairException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(e);
+        }
+    }
+
+    private List<Entry> slice(String prefix) throws RepairException {
+        final ByteBuffer start = encode(prefix);
+        //an empty prefix covers the whole row
+        final ByteBuffer end = prefix.length() == 0 ? ByteBuffer.wrap(new byte[] { (byte) 0xff }) : ByteBufferUtil.nextBiggerBuffer(start);
+        return transact(new StoreOp<List<Entry>>() {
+            public List<Entry> call(StoreTransaction stx) throws StorageException {
+                return store.getSlice(rowKey.duplicate(), start.duplicate(), end.duplicate(), stx);
+            }
+        });
+    }
+
+    private ByteBuffer get(final String column) throws RepairException {
+        return transact(new StoreOp<ByteBuffer>() {
+            public ByteBuffer call(StoreTransaction stx) throws StorageException {
+                return store.get(rowKey.duplicate(), encode(column), stx);
+            }
+        });
+    }
+
+    private void write(String column, ByteBuffer value) throws RepairException {
+        List<Entry> additions = new ArrayList<Entry>(1);
+        additions.add(new Entry(encode(column), value));
+        mutate(additions, null);
+    }
+
+    private void delete(String column) throws RepairException {
+        List<ByteBuffer> deletions = new ArrayList<ByteBuffer>(1);
+        deletions.add(encode(column));
+        mutate(null, deletions);
+    }
+
+    private void mutate(final List<Entry> additions, final List<ByteBuffer> deletions) throws RepairException {
+        transact(new StoreOp<Void>() {
+            public Void call(StoreTransaction stx) throws StorageException {
+                store.mutate(rowKey.duplicate(), additions, deletions, stx);
+                return null;
+            }
+        });
+    }
+
+    private interface StoreOp<T> {
+        T call(StoreTransaction stx) throws StorageException;
+    }
+
+    /**
+     * Makes the given call in its own key consistent store transaction,
+     * retrying it if it fails with a temporary storage exception
+     */
+    private <T> T transact(final StoreOp<T> op) throws RepairException {
+        return backpressure.retry(new Backpressure.StoreCall<T>() {
+            public T call() throws StorageException {
+                StoreTransaction stx = storeManager.beginTransaction(ConsistencyLevel.KEY_CONSISTENT);
+                try {
+                    T result = op.call(stx);
+                    stx.commit();
+                    return result;
+                } catch (StorageException e) {
+                    stx.abort();
+                    throw e;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package com.shift.titantools;
+
+/**
+ * A range of a JobCoordinator job, handed to the scan that runs it. The scan
+ * takes its shard from the range, and isn't checkpointed or watermarked, so
+ * the shard, checkpoint and watermark settings of the tools are left alone.
+ *
+ * A range is cancelled when its lease is lost. The scan notices before it
+ * reads its next key, and stops feeding its workers, rather than having a
+ * thread reading the store interrupted.
+ */
+class JobRange {
+    final int index;
+    final int count;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param index: the range, from 0 to count - 1
+     * @param count: the number of ranges of the job
+     */
+    JobRange(int index, int count) {
+        this.index = index;
+        this.count = count;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "range " + (index + 1) + "/" + count;
+    }
+}
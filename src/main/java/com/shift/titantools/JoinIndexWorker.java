@@ -0,0 +1,98 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.VariableLong;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Turns the index entries of the given keys, in the index rows handed to it
+ * by a ParallelScanner, into join records. Nothing is looked up, each row
+ * costs a single slice.
+ */
+class JoinIndexWorker extends ScanWorker {
+    static final String[] COUNTER_NAMES = { "indexEntries" };
+
+    private final KeyColumnValueStore indexStore;
+    private final Throttle throttle;
+    private final Backpressure backpressure;
+    private final LongSet keyIds = new LongSet();
+    private final ByteBuffer sliceStart;
+    private final ByteBuffer sliceEnd;
+    private final SortedRuns runs;
+
+    private final InternalTitanTransaction itx;
+    private final StoreTransaction stx;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKeys: the keys whose entries are collected
+     * @param runs: where the records are sorted
+     * @throws RepairException
+     */
+    public JoinIndexWorker(TitanGraphTools tools, StandardTitanGraph graph, List<TitanKey> titanKeys,
+                           SortedRuns runs) throws RepairException {
+        this.indexStore = tools.getBackend().getVertexIndexStore();
+        this.throttle = tools.getThrottle();
+        this.backpressure = tools.getBackpressure();
+        for (TitanKey titanKey: titanKeys) keyIds.add(titanKey.getID());
+        ByteBuffer[] slice = IndexRepairWorker.sliceRange(titanKeys);
+        this.sliceStart = slice[0];
+        this.sliceEnd = slice[1];
+        this.runs = runs;
+
+        itx = (InternalTitanTransaction) graph.newTransaction();
+        stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+    }
+
+    @Override
+    public void processKey(long seq, final ByteBuffer key) throws RepairException {
+        long start = System.nanoTime();
+        List<Entry> columns = backpressure.call(new Backpressure.StoreCall<List<Entry>>() {
+            public List<Entry> call() throws StorageException {
+                return indexStore.getSlice(key, sliceStart.duplicate(), sliceEnd.duplicate(), stx);
+            }
+        });
+        timed("slice", start);
+        throttle.entries(columns);
+
+        long count = 0;
+        long valueHash = 0;
+        byte[] row = null;
+        for (Entry entry: columns) {
+            long typeId = VariableLong.readPositive(entry.getColumn().duplicate());
+            //the slice can include the entries of keys that weren't asked for
+            if (!keyIds.contains(typeId)) continue;
+            if (row == null) {
+                valueHash = JoinRecord.hash(key);
+                row = ByteBuffers.toArray(key);
+            }
+            long vertexId = VariableLong.readPositive(entry.getValue().duplicate());
+            runs.add(new JoinRecord(
+                    vertexId, typeId, valueHash, JoinRecord.hash(entry.getColumn()), row, ByteBuffers.toArray(entry.getColumn())
+            ));
+            count++;
+        }
+        completed(seq, key, count > 0 ? new long[] { count } : null);
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        runs.spill();
+        itx.commit();
+    }
+
+    @Override
+    public void abort() {
+        itx.abort();
+    }
+}
@@ -0,0 +1,151 @@
+package com.shift.titantools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact description of one index entry, or of one indexed property
+ * value held by a vertex, as sorted and merged by IndexJoin.
+ *
+ * Records are ordered by vertex id, type id, the hash of the value's index
+ * row key, then the hash of the index column, so the entries and properties
+ * of a vertex meet during the merge. The column identifies the property an
+ * entry was written for, so an entry left over from another property with
+ * the same value doesn't pass for the current one. Index entries also carry
+ * their row key and column, so what's found wrong with them can be repaired
+ * from a report. Vertex records don't need them, which keeps the bulk of the
+ * records at 40 bytes on disk.
+ */
+class JoinRecord implements Comparable<JoinRecord> {
+    //the type id of the record marking that a vertex exists
+    static final long EXISTS = 0;
+
+    //the fixed fields, and the two length prefixes
+    private static final int FIXED_SIZE = 8 * 4 + 4 * 2;
+    //roughly what a record and its arrays cost on the heap, on top of their bytes
+    private static final int HEAP_OVERHEAD = 64;
+
+    final long vertexId;
+    final long typeId;
+    final long valueHash;
+    final long columnHash;
+    final byte[] row;
+    final byte[] column;
+
+    /**
+     * @param vertexId
+     * @param typeId: the property key, or EXISTS
+     * @param valueHash: the hash of the value's index row key, see hash
+     * @param columnHash: the hash of the value's index column, see hash
+     * @param row: the index row key of an index entry, or null
+     * @param column: the column of an index entry, or null
+     */
+    JoinRecord(long vertexId, long typeId, long valueHash, long columnHash, byte[] row, byte[] column) {
+        this.vertexId = vertexId;
+        this.typeId = typeId;
+        this.valueHash = valueHash;
+        this.columnHash = columnHash;
+        this.row = row;
+        this.column = column;
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the remaining bytes of the given buffer
+     *
+     * @param buffer
+     * @return
+     */
+    static long hash(ByteBuffer buffer) {
+        long h = 0xcbf29ce484222325L;
+        for (int i=buffer.position(); i<buffer.limit(); i++) {
+            h ^= buffer.get(i) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Returns true if the given record is about the same vertex and type
+     *
+     * @param other
+     * @return
+     */
+    boolean sameGroup(JoinRecord other) {
+        return vertexId == other.vertexId && typeId == other.typeId;
+    }
+
+    /**
+     * Returns true if the given record is about the same vertex, type and
+     * value, whatever the property it was written for
+     *
+     * @param other
+     * @return
+     */
+    boolean sameValue(JoinRecord other) {
+        return sameGroup(other) && valueHash == other.valueHash;
+    }
+
+    public int compareTo(JoinRecord other) {
+        if (vertexId != other.vertexId) return vertexId < other.vertexId ? -1 : 1;
+        if (typeId != other.typeId) return typeId < other.typeId ? -1 : 1;
+        if (valueHash != other.valueHash) return valueHash < other.valueHash ? -1 : 1;
+        if (columnHash != other.columnHash) return columnHash < other.columnHash ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Returns roughly how much heap the record takes, for deciding when to spill
+     *
+     * @return
+     */
+    int heapSize() {
+        return HEAP_OVERHEAD + (row == null ? 0 : row.length) + (column == null ? 0 : column.length);
+    }
+
+    /**
+     * Returns the size of the record in a run file
+     *
+     * @return
+     */
+    int diskSize() {
+        return FIXED_SIZE + (row == null ? 0 : row.length) + (column == null ? 0 : column.length);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(vertexId);
+        out.writeLong(typeId);
+        out.writeLong(valueHash);
+        out.writeLong(columnHash);
+        writeBytes(out, row);
+        writeBytes(out, column);
+    }
+
+    static JoinRecord read(DataInputStream in) throws IOException {
+        long vertexId = in.readLong();
+        long typeId = in.readLong();
+        long valueHash = in.readLong();
+        long columnHash = in.readLong();
+        byte[] row = readBytes(in);
+        byte[] column = readBytes(in);
+        return new JoinRecord(vertexId, typeId, valueHash, columnHash, row, column);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
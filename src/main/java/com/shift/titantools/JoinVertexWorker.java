@@ -0,0 +1,88 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanLabel;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.core.TitanType;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Turns the values of the given keys held by the vertices handed to it by a
+ * ParallelScanner into join records, along with a record marking that each
+ * vertex exists. Vertices are read through a transaction that's replaced
+ * every readTxSize vertices, the same as VertexCleanWorker.
+ */
+class JoinVertexWorker extends ScanWorker {
+    static final String[] COUNTER_NAMES = { "properties" };
+
+    private final TitanGraphTools tools;
+    private final StandardTitanGraph graph;
+    private final List<TitanKey> titanKeys;
+    private final int readTxSize;
+    private final SortedRuns runs;
+
+    private InternalTitanTransaction readTx;
+    private int readTxVertices = 0;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKeys: the keys whose values are collected
+     * @param readTxSize: the number of vertices read per transaction
+     * @param runs: where the records are sorted
+     */
+    public JoinVertexWorker(TitanGraphTools tools, StandardTitanGraph graph, List<TitanKey> titanKeys,
+                            int readTxSize, SortedRuns runs) {
+        this.tools = tools;
+        this.graph = graph;
+        this.titanKeys = titanKeys;
+        this.readTxSize = readTxSize;
+        this.runs = runs;
+        readTx = (InternalTitanTransaction) graph.newTransaction();
+    }
+
+    @Override
+    public void processKey(long seq, ByteBuffer key) throws RepairException {
+        if (readTxVertices++ >= readTxSize) {
+            readTx.commit();
+            readTx = (InternalTitanTransaction) graph.newTransaction();
+            readTxVertices = 0;
+        }
+
+        long start = System.nanoTime();
+        long count = 0;
+        TitanVertex v = readTx.getVertex(IDHandler.getKeyID(key));
+        if (v != null && !(v instanceof TitanType) && !(v instanceof TitanKey) && !(v instanceof TitanLabel)) {
+            runs.add(new JoinRecord(v.getID(), JoinRecord.EXISTS, 0, 0, null, null));
+            for (TitanKey titanKey: titanKeys) {
+                for (TitanProperty property: v.getProperties(titanKey.getName())) {
+                    long valueHash = JoinRecord.hash(tools.getIndexKey(property.getAttribute()));
+                    ByteBuffer column = titanKey.isUnique()
+                            ? tools.getKeyedIndexColumn(titanKey)
+                            : tools.getIndexColumn(titanKey, property.getID());
+                    runs.add(new JoinRecord(v.getID(), titanKey.getID(), valueHash, JoinRecord.hash(column), null, null));
+                    count++;
+                }
+            }
+        }
+        timed("vertex", start);
+        completed(seq, key, count > 0 ? new long[] { count } : null);
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        runs.spill();
+        readTx.commit();
+    }
+
+    @Override
+    public void abort() {
+        readTx.abort();
+    }
+}
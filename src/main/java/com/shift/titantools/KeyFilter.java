@@ -0,0 +1,19 @@
+package com.shift.titantools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which of the row keys read by a ParallelScanner are handed to
+ * its workers. Keys that aren't accepted are skipped as they're read, so
+ * they cost a key read, but no slice or lookup.
+ */
+interface KeyFilter {
+
+    /**
+     * Called on the thread reading the keys, in the order they're read
+     *
+     * @param key
+     * @return true if the row should be processed
+     */
+    boolean accept(ByteBuffer key);
+}
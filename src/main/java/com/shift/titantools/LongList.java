@@ -0,0 +1,78 @@
+package com.shift.titantools;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable list of longs, backed by an array of primitives rather than
+ * boxed Longs. Not thread safe.
+ */
+class LongList {
+    private long[] values;
+    private int size = 0;
+
+    LongList() {
+        this(16);
+    }
+
+    LongList(int capacity) {
+        values = new long[Math.max(1, capacity)];
+    }
+
+    void add(long value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    long get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the values, boxed one at a time as they're read
+     *
+     * @return
+     */
+    Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public Long next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return values[next++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i=0; i<size; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.shift.titantools;
+
+/**
+ * A set of longs, stored in an open addressing table of primitives, so an
+ * id takes 16 bytes at most instead of the 50 or so of a boxed HashSet entry,
+ * and adding one doesn't allocate. Not thread safe.
+ */
+class LongSet {
+    private static final int MIN_CAPACITY = 16;
+
+    //0 marks an empty slot, so it's tracked on the side
+    private long[] table;
+    private boolean hasZero = false;
+    private int size = 0;
+
+    LongSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected: the number of values the set is sized for
+     */
+    LongSet(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) capacity <<= 1;
+        table = new long[capacity];
+    }
+
+    /**
+     * Adds the given value
+     *
+     * @param value
+     * @return true if the value wasn't in the set already
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = table.length - 1;
+        int slot = mix(value) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == value) return false;
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+        size++;
+        //kept at most half full, so probe runs stay short
+        if (size * 2 > table.length) grow();
+        return true;
+    }
+
+    boolean contains(long value) {
+        if (value == 0) return hasZero;
+        int mask = table.length - 1;
+        int slot = mix(value) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == value) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    void addAll(LongSet other) {
+        if (other.hasZero) add(0);
+        for (long value: other.table) {
+            if (value != 0) add(value);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        size = hasZero ? 1 : 0;
+        for (long value: old) {
+            if (value != 0) add(value);
+        }
+    }
+
+    /**
+     * Spreads the bits of sequential ids over the table, the finalizer of murmur3
+     */
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,648 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.TemporaryStorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.RecordIterator;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads the row keys of a store on the calling thread and hands them out
+ * to a fixed pool of workers through a bounded queue.
+ *
+ * The titan store interface only exposes a single key iterator over the
+ * whole ring, so the keys themselves are read serially, but the row slices,
+ * vertex lookups and repairs done by the workers, which is where the time
+ * goes, run concurrently.
+ *
+ * Every key is numbered in the order it's read. Workers complete rows in
+ * any order, the scanner tracks how many rows have been completed without
+ * gaps from the start of the scan, and adds up the counters of those rows.
+ * The last of those rows the workers didn't write to is what gets written
+ * to the checkpoint, if there is one, and a resumed scan skips the keys up
+ * to and including that row's key.
+ */
+class ParallelScanner {
+    private static final ScanItem END_OF_KEYS = new ScanItem(-1, null);
+
+    private static final int PROGRESS_INTERVAL = 1000;
+    static final String PHASE_KEYS = "keys";
+
+    private final int queueSize;
+    private final Checkpoint checkpoint;
+    private final Throttle throttle;
+    private final Backpressure backpressure;
+    private final List<ScanListener> listeners;
+    private final boolean jmxEnabled;
+    private final String reportFile;
+    private final ScanMetrics metrics;
+    private ReportSink report;
+    private final List<KeyFilter> keyFilters = new ArrayList<KeyFilter>();
+    private int helperThreads = 0;
+    private JobRange jobRange = null;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    //rows that were completed ahead of the first incomplete one
+    private final Map<Long, ScanItem> completedAhead = new HashMap<Long, ScanItem>();
+    private long position = 0;
+    private final long[] counters;
+
+    //the last completed row that wasn't written to, which scans resume after
+    private long resumePosition = 0;
+    private ByteBuffer resumeKey = null;
+    private long[] resumeCounters;
+
+    /**
+     * Sets up a scan with the queue size, limits, listeners, checkpoint
+     * and report settings of the given tools
+     *
+     * @param tools
+     * @param job: identifies the scan in checkpoints and metrics
+     * @param progressLabel: what the completed rows are, like "keys inspected"
+     * @param counterNames: the names of the counters the workers report
+     * @throws RepairException if the checkpoint can't be opened
+     */
+    public ParallelScanner(TitanGraphTools tools, String job, String progressLabel, String[] counterNames) throws RepairException {
+        this(tools, job, progressLabel, counterNames, true);
+    }
+
+    /**
+     * Sets up a scan, without a checkpoint if it isn't resumable, which is
+     * the case for scans whose output doesn't outlive the run
+     *
+     * @param tools
+     * @param job: identifies the scan in checkpoints and metrics
+     * @param progressLabel: what the completed rows are, like "keys inspected"
+     * @param counterNames: the names of the counters the workers report
+     * @param resumable: whether the scan is checkpointed, if the tools have a checkpoint file
+     * @throws RepairException if the checkpoint can't be opened
+     */
+    public ParallelScanner(TitanGraphTools tools, String job, String progressLabel, String[] counterNames,
+                           boolean resumable) throws RepairException {
+        this.queueSize = tools.getScanQueueSize();
+        this.checkpoint = resumable ? tools.openCheckpoint(job, counterNames.length) : null;
+        this.throttle = tools.getThrottle();
+        this.backpressure = tools.getBackpressure();
+        this.listeners = tools.getListeners();
+        this.jmxEnabled = tools.isJmxEnabled();
+        this.reportFile = tools.getReportFile();
+        if (checkpoint != null) {
+            position = checkpoint.getPosition();
+            counters = checkpoint.getCounters();
+        } else {
+            counters = new long[counterNames.length];
+        }
+        resumePosition = position;
+        resumeKey = checkpoint == null ? null : checkpoint.getLastKey();
+        resumeCounters = counters.clone();
+        metrics = new ScanMetrics(job, progressLabel, counterNames, position, counters, tools.getEstimatedRows());
+    }
+
+    /**
+     * Returns the metrics of the scan
+     *
+     * @return
+     */
+    public ScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Only hands the keys accepted by the given filter to the workers. With
+     * several filters, a key must be accepted by all of them, and is offered
+     * to them in the order they were added
+     *
+     * @param keyFilter: the filter, null is ignored
+     */
+    public void addKeyFilter(KeyFilter keyFilter) {
+        if (keyFilter != null) keyFilters.add(keyFilter);
+    }
+
+    /**
+     * Sets the number of threads, besides the workers, that the workers hand
+     * store calls to, like lookup or writer threads. They take their share of
+     * the concurrency the scan is allowed against the store.
+     *
+     * @param helperThreads
+     */
+    public void setHelperThreads(int helperThreads) {
+        this.helperThreads = helperThreads;
+    }
+
+    /**
+     * Sets the job range the scan runs, the scan stops reading keys once the
+     * range is cancelled. The workers finish the rows they're on, and drop
+     * the ones still queued, so no thread reading the store is interrupted.
+     *
+     * @param jobRange: the range, or null if the scan isn't part of a job
+     */
+    public void setJobRange(JobRange jobRange) {
+        this.jobRange = jobRange;
+    }
+
+    /**
+     * Scans every key in the given store, returning once all workers
+     * have processed their keys and finished. If the scanner was given a
+     * checkpoint from an earlier run, the keys it covers are skipped.
+     *
+     * @param store: the store to scan
+     * @param stx: the store transaction used to read the keys
+     * @param workers: one thread is started per worker
+     * @throws RepairException if the key iteration or any of the workers fail
+     */
+    public void scan(KeyColumnValueStore store, StoreTransaction stx, List<? extends ScanWorker> workers) throws RepairException {
+        scan(new StoreKeys(store, stx), workers);
+    }
+
+    /**
+     * Scans the given row keys only, in the order they're given. This is
+     * how targeted repairs visit the rows they were told about, without
+     * reading every key in the store.
+     *
+     * @param keys: the row keys to process
+     * @param workers: one thread is started per worker
+     * @throws RepairException if any of the workers fail
+     */
+    public void scan(Iterator<ByteBuffer> keys, List<? extends ScanWorker> workers) throws RepairException {
+        scan(new GivenKeys(keys), workers);
+    }
+
+    private void scan(Keys keys, List<? extends ScanWorker> workers) throws RepairException {
+        for (KeyFilter keyFilter: keyFilters) keys = new FilteredKeys(keys, keyFilter);
+        report = null;
+        ObjectName mbean = null;
+        try {
+            backpressure.start(workers.size() + helperThreads, metrics, listeners);
+            report = ReportSink.open(reportFile);
+            mbean = registerMBean();
+            for (ScanListener listener: listeners) listener.scanStarted(metrics);
+            runWorkers(keys, workers);
+        } finally {
+            //also reached when a listener or the setup throws, which mustn't
+            //leave the report's writer thread, the permits or the mbean behind
+            if (report != null) {
+                try {
+                    report.close();
+                } catch (RepairException e) {
+                    fail(e);
+                }
+            }
+            backpressure.stop();
+            unregisterMBean(mbean);
+        }
+
+        Throwable t = failure.get();
+        metrics.finish();
+        for (ScanListener listener: listeners) listener.scanFinished(metrics, t);
+
+        if (checkpoint != null) {
+            if (t == null) {
+                checkpoint.delete();
+            } else {
+                synchronized (this) {
+                    checkpoint.save();
+                }
+                System.out.println("progress saved to checkpoint " + checkpoint + " at key " + checkpoint.getPosition());
+            }
+        }
+        if (t instanceof RepairException) throw (RepairException) t;
+        if (t != null) throw new RepairException(t);
+    }
+
+    /**
+     * Feeds the keys to the workers, and waits for them to finish. Failures
+     * are recorded with fail rather than thrown
+     *
+     * @param keys
+     * @param workers
+     */
+    private void runWorkers(Keys keys, List<? extends ScanWorker> workers) {
+        final BlockingQueue<ScanItem> queue = new ArrayBlockingQueue<ScanItem>(queueSize);
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size(), new DaemonThreadFactory("titan-tools-scan"));
+
+        for (final ScanWorker worker: workers) {
+            worker.attach(this);
+            pool.execute(new Runnable() {
+                public void run() {
+                    runWorker(worker, queue);
+                }
+            });
+        }
+
+        boolean cancelled = false;
+        try {
+            keys.open();
+            long seq = skipCompleted(keys);
+            while (keys.hasNext() && failure.get() == null) {
+                if (jobRange != null && jobRange.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                long start = System.nanoTime();
+                ByteBuffer key = keys.next();
+                metrics.addPhaseTime(PHASE_KEYS, System.nanoTime() - start);
+                throttle.rows(1);
+                throttle.bytes(key.remaining());
+                enqueue(queue, new ScanItem(seq++, key));
+            }
+            keys.close();
+            //the rows left belong to whoever holds the range now
+            if (cancelled) queue.clear();
+            for (int i=0; i<workers.size(); i++) {
+                enqueue(queue, END_OF_KEYS);
+            }
+        } catch (RepairException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+
+        if (failure.get() != null) {
+            pool.shutdownNow();
+        } else {
+            pool.shutdown();
+        }
+
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (failure.get() != null) pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            fail(e);
+        }
+        if (cancelled) fail(new RepairException("the scan of " + jobRange + " was cancelled"));
+    }
+
+    /**
+     * Skips over the keys covered by the checkpoint, up to and including its
+     * last key. The keys are compared rather than counted, as rows before it
+     * may have been emptied by their repairs, or added since, which shifts
+     * their positions. The last key itself is a row the scan didn't write
+     * to, so it's still there unless something else removed it.
+     *
+     * @param keys
+     * @return the position of the next key
+     * @throws RepairException if the checkpoint's last key isn't among the keys
+     */
+    private long skipCompleted(Keys keys) throws RepairException {
+        long skip = checkpoint == null ? 0 : checkpoint.getPosition();
+        if (skip == 0) return 0;
+
+        ByteBuffer last = checkpoint.getLastKey();
+        if (last == null) throw new RepairException("checkpoint " + checkpoint + " has no last key to resume from");
+        System.out.println("resuming from checkpoint " + checkpoint + " at key " + skip);
+        long skipped = 0;
+        while (keys.hasNext()) {
+            skipped++;
+            if (ByteBuffers.compare(keys.next(), last) == 0) {
+                if (skipped != skip) {
+                    System.out.println(skipped + " keys were skipped to reach the checkpoint's last key, " +
+                            "rows before it have been added or removed since it was written");
+                }
+                return skip;
+            }
+        }
+        throw new RepairException(
+                "the last key of checkpoint " + checkpoint + " is no longer in the scan, " +
+                "delete the checkpoint to start the scan over"
+        );
+    }
+
+    /**
+     * Returns the number of rows completed from the start of the scan
+     *
+     * @return
+     */
+    public synchronized long getCompletedCount() {
+        return position;
+    }
+
+    /**
+     * Returns the counters of the completed rows
+     *
+     * @return
+     */
+    public synchronized long[] getCounters() {
+        return counters.clone();
+    }
+
+    /**
+     * Called by the workers once a row is done
+     *
+     * @param seq
+     * @param key
+     * @param counts
+     * @param written: true if the worker wrote to the row
+     * @throws RepairException
+     */
+    synchronized void completed(long seq, ByteBuffer key, long[] counts, boolean written) throws RepairException {
+        completedAhead.put(seq, new ScanItem(key, counts, written));
+
+        long before = position;
+        ScanItem item;
+        while ((item = completedAhead.remove(position)) != null) {
+            if (item.counts != null) {
+                for (int i=0; i<counters.length; i++) counters[i] += item.counts[i];
+            }
+            position++;
+            if (checkpoint != null && !item.written) {
+                resumePosition = position;
+                resumeKey = item.key;
+                resumeCounters = counters.clone();
+            }
+            if (position % PROGRESS_INTERVAL == 0) {
+                metrics.update(position, counters);
+                for (ScanListener listener: listeners) listener.progress(metrics);
+            }
+        }
+
+        if (position > before) {
+            metrics.update(position, counters);
+            if (checkpoint != null) checkpoint.update(resumePosition, resumeKey, resumeCounters);
+        }
+    }
+
+    /**
+     * Called by the workers for every problem they find
+     *
+     * @param finding
+     * @throws RepairException if the report can't be written
+     */
+    void report(Finding finding) throws RepairException {
+        metrics.addFinding();
+        report.report(finding);
+    }
+
+    /**
+     * Called by the workers to add to the time spent in a phase of the scan
+     *
+     * @param phase
+     * @param nanos
+     */
+    void addPhaseTime(String phase, long nanos) {
+        metrics.addPhaseTime(phase, nanos);
+    }
+
+    /**
+     * Publishes the metrics over JMX for the duration of the scan
+     *
+     * @return the name the metrics were registered under, or null if they weren't
+     */
+    private ObjectName registerMBean() {
+        if (!jmxEnabled) return null;
+        try {
+            ObjectName name = new ObjectName("com.shift.titantools:type=Scan,name=" + ObjectName.quote(metrics.getJob()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            System.out.println("the scan metrics couldn't be published over jmx: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void unregisterMBean(ObjectName name) {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            //already gone
+        }
+    }
+
+    private void enqueue(BlockingQueue<ScanItem> queue, ScanItem item) throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            //stop feeding if the workers have given up
+            if (failure.get() != null) return;
+        }
+    }
+
+    private void runWorker(ScanWorker worker, BlockingQueue<ScanItem> queue) {
+        try {
+            while (true) {
+                ScanItem item = queue.take();
+                if (item == END_OF_KEYS) break;
+                backpressure.enter();
+                try {
+                    worker.processKey(item.seq, item.key);
+                } finally {
+                    backpressure.exit();
+                }
+            }
+            worker.finish();
+        } catch (Throwable t) {
+            fail(t);
+            worker.abort();
+        }
+    }
+
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    /**
+     * The row keys a scan hands out
+     */
+    private interface Keys {
+        void open() throws RepairException;
+        boolean hasNext() throws RepairException;
+        ByteBuffer next() throws RepairException;
+        void close() throws RepairException;
+    }
+
+    /**
+     * Iterates over the keys of a store. The state of the store's key
+     * iterator is unknown once one of its calls fails, so rather than making
+     * the call again, a temporary storage exception reopens the iterator and
+     * skips forward to the last key handed out.
+     */
+    private class StoreKeys implements Keys {
+        private final KeyColumnValueStore store;
+        private final StoreTransaction stx;
+        private RecordIterator<ByteBuffer> keys;
+        private ByteBuffer last = null;
+
+        StoreKeys(KeyColumnValueStore store, StoreTransaction stx) {
+            this.store = store;
+            this.stx = stx;
+        }
+
+        public void open() throws RepairException {
+            keys = backpressure.call(new Backpressure.StoreCall<RecordIterator<ByteBuffer>>() {
+                public RecordIterator<ByteBuffer> call() throws StorageException {
+                    return store.getKeys(stx);
+                }
+            });
+        }
+
+        public boolean hasNext() throws RepairException {
+            for (int attempt=0; ; attempt++) {
+                try {
+                    return keys.hasNext();
+                } catch (TemporaryStorageException e) {
+                    backpressure.backoff(e, attempt);
+                    reopen();
+                } catch (StorageException e) {
+                    throw new RepairException(e);
+                }
+            }
+        }
+
+        public ByteBuffer next() throws RepairException {
+            for (int attempt=0; ; attempt++) {
+                try {
+                    last = keys.next();
+                    return last;
+                } catch (TemporaryStorageException e) {
+                    backpressure.backoff(e, attempt);
+                    reopen();
+                } catch (StorageException e) {
+                    throw new RepairException(e);
+                }
+            }
+        }
+
+        public void close() throws RepairException {
+            if (keys == null) return;
+            try {
+                keys.close();
+            } catch (StorageException e) {
+                throw new RepairException(e);
+            }
+        }
+
+        /**
+         * Replaces the failed iterator with a new one positioned just past
+         * the last key handed out
+         */
+        private void reopen() throws RepairException {
+            final RecordIterator<ByteBuffer> failed = keys;
+            keys = backpressure.retry(new Backpressure.StoreCall<RecordIterator<ByteBuffer>>() {
+                public RecordIterator<ByteBuffer> call() throws StorageException {
+                    try {
+                        failed.close();
+                    } catch (StorageException e) {
+                        //the iterator is being abandoned anyway
+                    }
+                    RecordIterator<ByteBuffer> reopened = store.getKeys(stx);
+                    if (last == null) return reopened;
+                    while (reopened.hasNext()) {
+                        if (ByteBuffers.compare(reopened.next(), last) == 0) return reopened;
+                    }
+                    reopened.close();
+                    return null;
+                }
+            });
+            if (keys == null) {
+                throw new RepairException("the last key read before the key iterator failed is no longer in the store");
+            }
+        }
+    }
+
+    /**
+     * Hands out the keys of a given iterator
+     */
+    private static class GivenKeys implements Keys {
+        private final Iterator<ByteBuffer> keys;
+
+        GivenKeys(Iterator<ByteBuffer> keys) {
+            this.keys = keys;
+        }
+
+        public void open() { }
+
+        public boolean hasNext() {
+            return keys.hasNext();
+        }
+
+        public ByteBuffer next() {
+            return keys.next();
+        }
+
+        public void close() { }
+    }
+
+    /**
+     * Hands out the keys accepted by a filter. Checkpoint positions count
+     * the accepted keys only, so a filtered scan resumes with the same filter
+     */
+    private static class FilteredKeys implements Keys {
+        private final Keys keys;
+        private final KeyFilter filter;
+        private ByteBuffer next = null;
+
+        FilteredKeys(Keys keys, KeyFilter filter) {
+            this.keys = keys;
+            this.filter = filter;
+        }
+
+        public void open() throws RepairException {
+            keys.open();
+        }
+
+        public boolean hasNext() throws RepairException {
+            while (next == null && keys.hasNext()) {
+                ByteBuffer key = keys.next();
+                if (filter.accept(key)) next = key;
+            }
+            return next != null;
+        }
+
+        public ByteBuffer next() throws RepairException {
+            if (!hasNext()) throw new NoSuchElementException();
+            ByteBuffer key = next;
+            next = null;
+            return key;
+        }
+
+        public void close() throws RepairException {
+            keys.close();
+        }
+    }
+
+    /**
+     * A key waiting to be processed, or a completed row waiting for
+     * the rows before it to be completed
+     */
+    private static class ScanItem {
+        final long seq;
+        final ByteBuffer key;
+        final long[] counts;
+        final boolean written;
+
+        ScanItem(long seq, ByteBuffer key) {
+            this.seq = seq;
+            this.key = key;
+            this.counts = null;
+            this.written = false;
+        }
+
+        ScanItem(ByteBuffer key, long[] counts, boolean written) {
+            this.seq = -1;
+            this.key = key;
+            this.counts = counts;
+            this.written = written;
+        }
+    }
+}
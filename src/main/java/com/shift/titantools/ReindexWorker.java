@@ -0,0 +1,117 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes an index entry for every value of a property key held by the
+ * vertices handed to it by a ParallelScanner.
+ *
+ * Index entries are buffered, and written out in one transaction once
+ * enough properties or bytes have been collected. The transaction vertices
+ * are read with is replaced at the same time, so neither the buffered
+ * entries nor the loaded vertices grow with the size of the graph.
+ */
+class ReindexWorker extends ScanWorker {
+    static final int PROPERTIES_REINDEXED = 0;
+    static final int COUNTER_COUNT = 1;
+    static final String[] COUNTER_NAMES = { "propertiesReindexed" };
+
+    private final StandardTitanGraph graph;
+    private final TitanKey titanKey;
+    private final int maxRows;
+
+    private final IndexMutationBatch batch;
+    private InternalTitanTransaction readTx;
+
+    //rows whose index entries haven't been written yet
+    private final LongList pendingSeqs = new LongList();
+    private final List<ByteBuffer> pendingKeys = new ArrayList<ByteBuffer>();
+    private long pendingCount = 0;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param titanKey: the key to reindex
+     * @param batchSize: the number of properties, or vertices, handled per transaction
+     * @param batchBytes: the size of the index entries written per transaction
+     * @throws RepairException
+     */
+    public ReindexWorker(TitanGraphTools tools, StandardTitanGraph graph, TitanKey titanKey,
+                         int batchSize, long batchBytes) throws RepairException {
+        this.graph = graph;
+        this.titanKey = titanKey;
+        this.maxRows = batchSize;
+        this.batch = new IndexMutationBatch(tools, graph, batchSize, batchBytes);
+        readTx = (InternalTitanTransaction) graph.newTransaction();
+    }
+
+    @Override
+    public void processKey(long seq, ByteBuffer key) throws RepairException {
+        long start = System.nanoTime();
+        long eid = IDHandler.getKeyID(key);
+        TitanVertex v = readTx.getVertex(eid);
+        if (v != null) {
+            Iterator<TitanProperty> properties = v.getProperties(titanKey.getName()).iterator();
+            while (properties.hasNext()) {
+                batch.add(properties.next());
+                pendingCount++;
+            }
+        }
+        timed("read", start);
+        pendingSeqs.add(seq);
+        pendingKeys.add(key);
+
+        //rows are also capped, for keys few vertices have a value for
+        if (batch.isFull() || pendingSeqs.size() >= maxRows) {
+            flush();
+            readTx.commit();
+            readTx = (InternalTitanTransaction) graph.newTransaction();
+        }
+    }
+
+    /**
+     * Writes out the buffered index entries and completes their rows
+     *
+     * @throws RepairException
+     */
+    private void flush() throws RepairException {
+        long start = System.nanoTime();
+        batch.flush();
+        timed("write", start);
+        int last = pendingSeqs.size() - 1;
+        for (int i=0; i<=last; i++) {
+            //the whole count goes to the last row, which is only counted
+            //once all the rows before it have been completed
+            long[] counts = null;
+            if (i == last && pendingCount > 0) {
+                counts = new long[COUNTER_COUNT];
+                counts[PROPERTIES_REINDEXED] = pendingCount;
+            }
+            completed(pendingSeqs.get(i), pendingKeys.get(i), counts);
+        }
+        pendingSeqs.clear();
+        pendingKeys.clear();
+        pendingCount = 0;
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        flush();
+        readTx.commit();
+    }
+
+    @Override
+    public void abort() {
+        readTx.abort();
+    }
+}
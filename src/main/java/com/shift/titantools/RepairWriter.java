@@ -0,0 +1,144 @@
+package com.shift.titantools;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The write stage of an index repair. Full batches of repairs are handed
+ * to it by the scan threads, which go back to reading and validating rows
+ * while the batches are written on the writer's own threads.
+ *
+ * At most queueSize batches wait to be written. Once the queue is full, the
+ * scan thread handing over a batch writes it itself, so a slow store holds
+ * back the reads and validations instead of letting batches pile up in
+ * memory. With no writer threads, every batch is written by the scan thread
+ * that filled it.
+ */
+class RepairWriter {
+    private final ThreadPoolExecutor pool;
+    private final Backpressure backpressure;
+
+    /**
+     * Called once a batch has been written
+     */
+    interface Callback {
+
+        /**
+         * @param startNanos: the System.nanoTime() the write started at
+         * @throws RepairException
+         */
+        void written(long startNanos) throws RepairException;
+    }
+
+    /**
+     * @param threads: the number of threads writing batches, 0 to write them on the scan threads
+     * @param queueSize: the number of batches that can wait for a writer thread
+     * @param backpressure: limits the batches written at once along with the rest of the scan
+     */
+    RepairWriter(int threads, int queueSize, Backpressure backpressure) {
+        this.backpressure = backpressure;
+        if (threads < 1) {
+            pool = null;
+        } else {
+            pool = new ThreadPoolExecutor(
+                    threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                    new DaemonThreadFactory("titan-tools-write"),
+                    new ThreadPoolExecutor.CallerRunsPolicy()
+            );
+        }
+    }
+
+    /**
+     * Writes the given batch, then calls the callback, on a writer thread
+     * if one is free or the queue has room, or on the calling thread
+     *
+     * @param batch: the batch to write, it must not be added to anymore
+     * @param callback
+     * @return the pending write, whose outcome is read with await
+     * @throws RepairException if the batch was written on the calling thread and failed
+     */
+    Write submit(final IndexMutationBatch batch, final Callback callback) throws RepairException {
+        Callable<Void> write = new Callable<Void>() {
+            public Void call() throws RepairException {
+                backpressure.enter();
+                try {
+                    long start = System.nanoTime();
+                    batch.flush();
+                    callback.written(start);
+                    return null;
+                } finally {
+                    backpressure.exit();
+                }
+            }
+        };
+        if (pool == null) {
+            try {
+                write.call();
+            } catch (RepairException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RepairException(e);
+            }
+            return new Write(null, backpressure);
+        }
+        return new Write(pool.submit(write), backpressure);
+    }
+
+    /**
+     * Stops the writer threads, once every worker has awaited its writes
+     */
+    void shutdown() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /**
+     * A batch handed to the writer
+     */
+    static class Write {
+        private final Future<Void> future;
+        private final Backpressure backpressure;
+
+        Write(Future<Void> future, Backpressure backpressure) {
+            this.future = future;
+            this.backpressure = backpressure;
+        }
+
+        boolean isDone() {
+            return future == null || future.isDone();
+        }
+
+        /**
+         * Waits for the batch to be written
+         *
+         * @throws RepairException if it couldn't be
+         */
+        void await() throws RepairException {
+            if (future == null) return;
+            backpressure.await(future);
+        }
+
+        /**
+         * Waits for the given writes, and removes them from the list
+         *
+         * @param writes
+         * @param all: waits for every write if true, or only collects the finished ones
+         * @throws RepairException if a write failed
+         */
+        static void collect(List<Write> writes, boolean all) throws RepairException {
+            Iterator<Write> i = writes.iterator();
+            while (i.hasNext()) {
+                Write write = i.next();
+                if (all || write.isDone()) {
+                    i.remove();
+                    write.await();
+                }
+            }
+        }
+    }
+}
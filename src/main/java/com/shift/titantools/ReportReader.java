@@ -0,0 +1,66 @@
+package com.shift.titantools;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads back the findings written to a report file by ReportSink, gzip
+ * compressed if the file name ends in .gz. A report cut short by a run
+ * that died is read up to the last finding that made it to disk.
+ */
+class ReportReader {
+    private final String path;
+    private final BufferedReader in;
+    private long line = 0;
+
+    /**
+     * @param path: the report file
+     * @throws RepairException if the file can't be opened
+     */
+    ReportReader(String path) throws RepairException {
+        this.path = path;
+        try {
+            InputStream file = new FileInputStream(path);
+            if (path.endsWith(".gz")) file = new GZIPInputStream(file, 65536);
+            in = new BufferedReader(new InputStreamReader(file, Charset.forName("UTF-8")), 65536);
+        } catch (IOException e) {
+            throw new RepairException("the report file " + path + " couldn't be opened", e);
+        }
+    }
+
+    /**
+     * Returns the next finding in the report
+     *
+     * @return the finding, or null at the end of the report
+     * @throws RepairException if the report can't be read
+     */
+    Finding next() throws RepairException {
+        try {
+            String s;
+            while ((s = in.readLine()) != null) {
+                line++;
+                if (s.trim().length() > 0) return Finding.parse(s);
+            }
+            return null;
+        } catch (EOFException e) {
+            //the last gzip member wasn't finished, everything before it has been read
+            return null;
+        } catch (IOException e) {
+            throw new RepairException("the report file " + path + " couldn't be read at line " + line, e);
+        }
+    }
+
+    void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            //nothing left to read
+        }
+    }
+}
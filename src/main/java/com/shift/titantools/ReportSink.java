@@ -0,0 +1,133 @@
+package com.shift.titantools;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the findings of a scan from a background thread, so the scan
+ * threads only pay for putting them on a queue. The output is buffered,
+ * and flushed whenever the queue runs dry. If findings are made faster
+ * than they can be written, the scan threads wait for room in the queue
+ * rather than losing any.
+ *
+ * Findings are printed in their readable form on the console, and written
+ * to report files as JSON lines, see Finding. Report files whose name ends
+ * in .gz are gzip compressed. Each run appends a gzip member of its own,
+ * which gzip readers treat as one stream, and every flush is a sync flush,
+ * so the findings of a run that dies are readable up to its last flush.
+ */
+class ReportSink {
+    private static final int QUEUE_SIZE = 10000;
+    private static final Finding END = new Finding(null, 0, 0, null, null, null, null, false);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BlockingQueue<Finding> queue = new ArrayBlockingQueue<Finding>(QUEUE_SIZE);
+    private final Writer out;
+    private final boolean closeOut;
+    private final boolean json;
+    private final Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * @param out: where the findings are written, one per line
+     * @param closeOut: whether out is closed along with the sink
+     * @param json: whether findings are written as JSON, rather than in their readable form
+     */
+    ReportSink(Writer out, boolean closeOut, boolean json) {
+        this.out = out;
+        this.closeOut = closeOut;
+        this.json = json;
+        writer = new DaemonThreadFactory("titan-tools-report").newThread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * Opens a sink writing to the given file, or to the console if the path is null
+     *
+     * @param path
+     * @return
+     * @throws RepairException
+     */
+    static ReportSink open(String path) throws RepairException {
+        if (path == null) {
+            return new ReportSink(new BufferedWriter(new OutputStreamWriter(System.out)), false, false);
+        }
+        try {
+            OutputStream file = new FileOutputStream(path, true);
+            if (path.endsWith(".gz")) file = new GZIPOutputStream(file, 65536, true);
+            return new ReportSink(new BufferedWriter(new OutputStreamWriter(file, UTF8), 65536), true, true);
+        } catch (IOException e) {
+            throw new RepairException("the report file " + path + " couldn't be opened", e);
+        }
+    }
+
+    /**
+     * Queues the given finding to be written
+     *
+     * @param finding
+     * @throws RepairException if writing failed, or the caller was interrupted
+     */
+    void report(Finding finding) throws RepairException {
+        if (failure != null) throw new RepairException("the report couldn't be written", failure);
+        try {
+            queue.put(finding);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(e);
+        }
+    }
+
+    /**
+     * Writes out the queued findings and closes the sink
+     *
+     * @throws RepairException if the findings couldn't be written
+     */
+    void close() throws RepairException {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepairException(e);
+        }
+        if (failure != null) throw new RepairException("the report couldn't be written", failure);
+    }
+
+    private void drain() {
+        try {
+            try {
+                while (true) {
+                    Finding finding = queue.take();
+                    if (finding == END) break;
+                    write(finding);
+                    if (queue.isEmpty()) out.flush();
+                }
+                out.flush();
+            } finally {
+                if (closeOut) out.close();
+            }
+        } catch (IOException e) {
+            failure = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            //the scan is being torn down
+        }
+    }
+
+    private void write(Finding finding) throws IOException {
+        out.write(json ? finding.toJson() : finding.toString());
+        out.write('\n');
+    }
+}
@@ -0,0 +1,39 @@
+package com.shift.titantools;
+
+/**
+ * Receives the progress of the scans run by TitanGraphTools. Listeners are
+ * called from the scan threads, so they should return quickly.
+ */
+public interface ScanListener {
+
+    /**
+     * Called before the first key is read
+     *
+     * @param metrics
+     */
+    void scanStarted(ScanMetrics metrics);
+
+    /**
+     * Called every time another 1000 rows have been completed
+     *
+     * @param metrics
+     */
+    void progress(ScanMetrics metrics);
+
+    /**
+     * Called when the number of threads allowed to work against the store
+     * at once is changed to follow the store's latency
+     *
+     * @param metrics: holds the new number, see getConcurrency
+     * @param reason: what prompted the change
+     */
+    void concurrencyChanged(ScanMetrics metrics, String reason);
+
+    /**
+     * Called once the scan is over
+     *
+     * @param metrics
+     * @param failure: the reason the scan failed, or null if it completed
+     */
+    void scanFinished(ScanMetrics metrics, Throwable failure);
+}
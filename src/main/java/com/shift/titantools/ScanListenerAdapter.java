@@ -0,0 +1,16 @@
+package com.shift.titantools;
+
+/**
+ * A listener that ignores every call, to extend when only some of the
+ * calls of ScanListener are of interest
+ */
+public class ScanListenerAdapter implements ScanListener {
+
+    public void scanStarted(ScanMetrics metrics) { }
+
+    public void progress(ScanMetrics metrics) { }
+
+    public void concurrencyChanged(ScanMetrics metrics, String reason) { }
+
+    public void scanFinished(ScanMetrics metrics, Throwable failure) { }
+}
@@ -0,0 +1,186 @@
+package com.shift.titantools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a single scan: the rows completed, the counters the
+ * workers reported for them, the number of findings, and the time spent
+ * in each phase of the scan, added up across threads.
+ *
+ * The rate and ETA only count the rows completed by this run, not those
+ * covered by the checkpoint it resumed from. An ETA is only available if
+ * the number of rows to scan was estimated up front.
+ */
+public class ScanMetrics implements ScanMetricsMBean {
+    private final String job;
+    private final String progressLabel;
+    private final String[] counterNames;
+    private final long estimatedRows;
+    private final long startedAt = System.currentTimeMillis();
+    private final long resumedFrom;
+
+    private long rowsCompleted;
+    private final long[] counters;
+    private final AtomicLong findings = new AtomicLong();
+    private final Map<String, AtomicLong> phaseNanos = new ConcurrentHashMap<String, AtomicLong>();
+    private final List<String> phases = new ArrayList<String>();
+    private volatile long finishedAt = 0;
+    private volatile int concurrency = 0;
+
+    /**
+     * @param job: the name of the scan, as used in checkpoints
+     * @param progressLabel: what the completed rows are, like "keys inspected"
+     * @param counterNames: the names of the counters the workers report
+     * @param resumedFrom: the number of rows covered by the checkpoint the scan resumed from
+     * @param counters: the counter values the checkpoint recorded
+     * @param estimatedRows: the expected number of rows, or -1 if unknown
+     */
+    ScanMetrics(String job, String progressLabel, String[] counterNames, long resumedFrom, long[] counters, long estimatedRows) {
+        this.job = job;
+        this.progressLabel = progressLabel;
+        this.counterNames = counterNames.clone();
+        this.resumedFrom = resumedFrom;
+        this.rowsCompleted = resumedFrom;
+        this.counters = counters.clone();
+        this.estimatedRows = estimatedRows;
+    }
+
+    synchronized void update(long rowsCompleted, long[] counters) {
+        this.rowsCompleted = rowsCompleted;
+        System.arraycopy(counters, 0, this.counters, 0, counters.length);
+    }
+
+    void addFinding() {
+        findings.incrementAndGet();
+    }
+
+    void addPhaseTime(String phase, long nanos) {
+        AtomicLong total = phaseNanos.get(phase);
+        if (total == null) {
+            synchronized (phases) {
+                total = phaseNanos.get(phase);
+                if (total == null) {
+                    total = new AtomicLong();
+                    phaseNanos.put(phase, total);
+                    phases.add(phase);
+                }
+            }
+        }
+        total.addAndGet(nanos);
+    }
+
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    void finish() {
+        finishedAt = System.currentTimeMillis();
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public String getProgressLabel() {
+        return progressLabel;
+    }
+
+    public synchronized long getRowsCompleted() {
+        return rowsCompleted;
+    }
+
+    public long getElapsedMillis() {
+        long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+        return end - startedAt;
+    }
+
+    public double getRowsPerSecond() {
+        long elapsed = getElapsedMillis();
+        if (elapsed == 0) return 0;
+        return (getRowsCompleted() - resumedFrom) * 1000.0 / elapsed;
+    }
+
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    /**
+     * Returns the estimated time until the scan completes, or -1 if
+     * the number of rows wasn't estimated or nothing has been done yet
+     *
+     * @return
+     */
+    public long getEtaMillis() {
+        double rate = getRowsPerSecond();
+        if (estimatedRows < 0 || rate <= 0) return -1;
+        return (long) (Math.max(0, estimatedRows - getRowsCompleted()) * 1000 / rate);
+    }
+
+    public long getFindings() {
+        return findings.get();
+    }
+
+    public String[] getCounterNames() {
+        return counterNames.clone();
+    }
+
+    public synchronized long[] getCounterValues() {
+        return counters.clone();
+    }
+
+    /**
+     * Returns the value of the named counter
+     *
+     * @param name
+     * @return
+     */
+    public synchronized long getCounter(String name) {
+        for (int i=0; i<counterNames.length; i++) {
+            if (counterNames[i].equals(name)) return counters[i];
+        }
+        throw new IllegalArgumentException("unknown counter: " + name);
+    }
+
+    public String[] getPhaseNames() {
+        synchronized (phases) {
+            return phases.toArray(new String[phases.size()]);
+        }
+    }
+
+    public long[] getPhaseMillis() {
+        String[] names = getPhaseNames();
+        long[] millis = new long[names.length];
+        for (int i=0; i<names.length; i++) {
+            millis[i] = getPhaseMillis(names[i]);
+        }
+        return millis;
+    }
+
+    /**
+     * Returns the time spent in the given phase, added up across threads
+     *
+     * @param phase
+     * @return
+     */
+    public long getPhaseMillis(String phase) {
+        AtomicLong total = phaseNanos.get(phase);
+        return total == null ? 0 : total.get() / 1000000;
+    }
+
+    /**
+     * Returns the number of threads currently allowed to work against the store
+     *
+     * @return
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public boolean isFinished() {
+        return finishedAt != 0;
+    }
+}
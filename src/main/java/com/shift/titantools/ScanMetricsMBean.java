@@ -0,0 +1,20 @@
+package com.shift.titantools;
+
+/**
+ * The scan metrics published over JMX while a scan is running
+ */
+public interface ScanMetricsMBean {
+    String getJob();
+    long getRowsCompleted();
+    long getElapsedMillis();
+    double getRowsPerSecond();
+    long getEstimatedRows();
+    long getEtaMillis();
+    long getFindings();
+    String[] getCounterNames();
+    long[] getCounterValues();
+    String[] getPhaseNames();
+    long[] getPhaseMillis();
+    int getConcurrency();
+    boolean isFinished();
+}
@@ -0,0 +1,89 @@
+package com.shift.titantools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Processes the rows handed out by a ParallelScanner. Each worker
+ * is only ever called from a single scan thread, so implementations
+ * can keep their own transactions without locking.
+ *
+ * Workers report every row back to the scanner through completed once
+ * its changes are committed, which is what the scanner's progress and
+ * checkpoints are based on.
+ */
+abstract class ScanWorker {
+    private ParallelScanner scanner;
+
+    void attach(ParallelScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * Called once for every row key assigned to this worker
+     *
+     * @param seq: the position of the key in the scan
+     * @param key
+     * @throws RepairException
+     */
+    public abstract void processKey(long seq, ByteBuffer key) throws RepairException;
+
+    /**
+     * Called once all keys have been processed, before the scan returns.
+     * Every row still pending must be completed by the time this returns.
+     *
+     * @throws RepairException
+     */
+    public void finish() throws RepairException { }
+
+    /**
+     * Called instead of finish if the scan fails
+     */
+    public void abort() { }
+
+    /**
+     * Marks the row at the given position as done
+     *
+     * @param seq: the position passed to processKey
+     * @param key: the row key passed to processKey
+     * @param counts: the amounts to add to the scan counters, or null if there's nothing to add
+     * @throws RepairException if a checkpoint can't be written
+     */
+    protected final void completed(long seq, ByteBuffer key, long[] counts) throws RepairException {
+        scanner.completed(seq, key, counts, false);
+    }
+
+    /**
+     * Marks the row at the given position as done, once the worker has
+     * written to the row itself. A written row may have been emptied, and
+     * be gone from the store, so checkpoints never resume from one.
+     *
+     * @param seq: the position passed to processKey
+     * @param key: the row key passed to processKey
+     * @param counts: the amounts to add to the scan counters, or null if there's nothing to add
+     * @param written: true if the row was written to
+     * @throws RepairException if a checkpoint can't be written
+     */
+    protected final void completed(long seq, ByteBuffer key, long[] counts, boolean written) throws RepairException {
+        scanner.completed(seq, key, counts, written);
+    }
+
+    /**
+     * Reports a problem found in a row
+     *
+     * @param finding
+     * @throws RepairException if the report can't be written
+     */
+    protected final void report(Finding finding) throws RepairException {
+        scanner.report(finding);
+    }
+
+    /**
+     * Adds the time since the given start to a phase of the scan
+     *
+     * @param phase
+     * @param startNanos: the System.nanoTime() the phase started at
+     */
+    protected final void timed(String phase, long startNanos) {
+        scanner.addPhaseTime(phase, System.nanoTime() - startNanos);
+    }
+}
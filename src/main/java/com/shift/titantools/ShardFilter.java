@@ -0,0 +1,77 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accepts the row keys that belong to one shard of a scan, so that several
+ * processes, each given a different shard index, split a scan between them
+ * without talking to each other.
+ *
+ * A key's shard is a hash of its bytes, which every process computes the
+ * same way, so the shards don't overlap and together cover every row. Vertex
+ * rows can also be restricted to some id partitions, index rows aren't keyed
+ * by vertex, so they're only ever split by shard.
+ */
+class ShardFilter implements KeyFilter {
+    private final int index;
+    private final int count;
+    private final long[] partitionIds;
+    private final LongSet partitions;
+    private final IDManager idManager;
+
+    /**
+     * @param index: the shard to accept, from 0 to count - 1
+     * @param count: the number of shards
+     * @param partitions: the id partitions whose vertex rows are accepted, or null for all of them
+     * @param idManager: reads the partitions of vertex row keys, or null if the keys aren't vertex rows
+     */
+    ShardFilter(int index, int count, long[] partitions, IDManager idManager) {
+        this.index = index;
+        this.count = count;
+        this.partitionIds = idManager == null ? null : partitions;
+        this.partitions = partitionIds == null ? null : new LongSet(partitionIds.length);
+        if (partitionIds != null) {
+            for (long partition: partitionIds) this.partitions.add(partition);
+        }
+        this.idManager = idManager;
+    }
+
+    public boolean accept(ByteBuffer key) {
+        if (partitions != null && !partitions.contains(idManager.getPartitionID(IDHandler.getKeyID(key.duplicate())))) {
+            return false;
+        }
+        return count == 1 || shardOf(key, count) == index;
+    }
+
+    /**
+     * Returns the shard the given key falls in
+     *
+     * @param key
+     * @param count: the number of shards
+     * @return
+     */
+    static int shardOf(ByteBuffer key, int count) {
+        //the hash of a buffer only depends on its remaining bytes, and is
+        //spread with the murmur3 finalizer, as sequential ids differ little
+        long h = key.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % count);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (count > 1) sb.append("shard ").append(index + 1).append('/').append(count);
+        if (partitions != null) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append("partitions ").append(Arrays.toString(partitionIds));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,258 @@
+package com.shift.titantools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more records than fit in memory. Records are buffered until they
+ * take up the given amount of heap, then sorted and written to a run file.
+ * The runs, of any number of SortedRuns, are read back in order by merging
+ * them. Only MAX_FAN_IN runs are merged at once, to bound the open files
+ * and read buffers, so when there are more the runs are first merged in
+ * groups into longer runs, with every record written and read once more
+ * per pass, sequentially.
+ *
+ * A SortedRuns isn't thread safe, each scan worker keeps its own.
+ */
+class SortedRuns {
+    private static final int BUFFER_SIZE = 65536;
+    static final int MAX_FAN_IN = 64;
+
+    private final File directory;
+    private final String prefix;
+    private final long maxHeap;
+
+    private final List<JoinRecord> buffer = new ArrayList<JoinRecord>();
+    private long bufferHeap = 0;
+    private final List<File> runs = new ArrayList<File>();
+    private long records = 0;
+    private long bytes = 0;
+
+    /**
+     * @param directory: where the run files are written
+     * @param prefix: the start of the run file names
+     * @param maxHeap: the amount of heap the buffered records may take before they're written out
+     */
+    SortedRuns(File directory, String prefix, long maxHeap) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxHeap = maxHeap;
+    }
+
+    void add(JoinRecord record) throws RepairException {
+        buffer.add(record);
+        bufferHeap += record.heapSize();
+        if (bufferHeap >= maxHeap) spill();
+    }
+
+    /**
+     * Sorts the buffered records and writes them out as a run
+     *
+     * @throws RepairException
+     */
+    void spill() throws RepairException {
+        if (buffer.isEmpty()) return;
+        Collections.sort(buffer);
+        File run;
+        try {
+            run = File.createTempFile(prefix, ".run", directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+            try {
+                for (JoinRecord record: buffer) {
+                    record.write(out);
+                    bytes += record.diskSize();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("a sorted run couldn't be written to " + directory, e);
+        }
+        runs.add(run);
+        records += buffer.size();
+        buffer.clear();
+        bufferHeap = 0;
+    }
+
+    List<File> getRuns() {
+        return runs;
+    }
+
+    long getRecordCount() {
+        return records;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    /**
+     * Removes the given run files
+     *
+     * @param runs
+     */
+    static void delete(List<File> runs) {
+        for (File run: runs) run.delete();
+    }
+
+    /**
+     * Merges the given runs in groups until no more than MAX_FAN_IN are left,
+     * deleting the runs of each group once they're merged. If a merge fails,
+     * the runs left are deleted too.
+     *
+     * @param runs: the run files to merge
+     * @param directory: where the merged runs are written
+     * @param prefix: the start of the merged run file names
+     * @return the runs left, to read back with a Merger and delete afterwards
+     * @throws RepairException if a run can't be read or written
+     */
+    static List<File> reduce(List<File> runs, File directory, String prefix) throws RepairException {
+        List<File> remaining = new ArrayList<File>(runs);
+        boolean done = false;
+        try {
+            while (remaining.size() > MAX_FAN_IN) {
+                List<File> group = remaining.subList(0, MAX_FAN_IN);
+                File merged = mergeRuns(group, directory, prefix);
+                delete(group);
+                group.clear();
+                remaining.add(merged);
+            }
+            done = true;
+        } finally {
+            if (!done) delete(remaining);
+        }
+        return remaining;
+    }
+
+    private static File mergeRuns(List<File> group, File directory, String prefix) throws RepairException {
+        Merger merger = new Merger(group);
+        File merged = null;
+        boolean done = false;
+        try {
+            merged = File.createTempFile(prefix, ".run", directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE));
+            try {
+                JoinRecord record;
+                while ((record = merger.next()) != null) record.write(out);
+            } finally {
+                out.close();
+            }
+            done = true;
+            return merged;
+        } catch (IOException e) {
+            throw new RepairException("a merged run couldn't be written to " + directory, e);
+        } finally {
+            merger.close();
+            if (!done && merged != null) merged.delete();
+        }
+    }
+
+    /**
+     * Reads the records of the given runs back in order, all of them are
+     * open at once, so there should be no more than MAX_FAN_IN, see reduce
+     */
+    static class Merger {
+        private final PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>();
+
+        /**
+         * @param runs: the run files to merge
+         * @throws RepairException if a run can't be read
+         */
+        Merger(List<File> runs) throws RepairException {
+            try {
+                for (File run: runs) {
+                    RunReader reader = new RunReader(run);
+                    if (reader.advance()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new RepairException("a sorted run couldn't be read", e);
+            }
+        }
+
+        /**
+         * Returns the next record without consuming it
+         *
+         * @return the record, or null once all runs are exhausted
+         */
+        JoinRecord peek() {
+            RunReader reader = readers.peek();
+            return reader == null ? null : reader.current;
+        }
+
+        /**
+         * Returns and consumes the next record
+         *
+         * @return the record, or null once all runs are exhausted
+         * @throws RepairException if a run can't be read
+         */
+        JoinRecord next() throws RepairException {
+            RunReader reader = readers.poll();
+            if (reader == null) return null;
+            JoinRecord record = reader.current;
+            try {
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                throw new RepairException("the sorted run " + reader.run + " couldn't be read", e);
+            }
+            return record;
+        }
+
+        void close() {
+            for (RunReader reader: readers) reader.close();
+            readers.clear();
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        final File run;
+        final DataInputStream in;
+        JoinRecord current;
+
+        RunReader(File run) throws IOException {
+            this.run = run;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                current = JoinRecord.read(in);
+                return true;
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                //only read from
+            }
+        }
+
+        public int compareTo(RunReader other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
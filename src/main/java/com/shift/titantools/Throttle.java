@@ -0,0 +1,167 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+
+import java.util.List;
+
+/**
+ * Caps the rate at which the tools read rows, read and write bytes, and
+ * write mutations, so a scan can run next to production traffic.
+ *
+ * Each limit is a token bucket holding up to a second's worth of permits.
+ * A caller taking more permits than are available takes them anyway, and
+ * sleeps until the bucket would have refilled, so large requests aren't
+ * starved by small ones. Limits can be changed while a scan is running,
+ * and a limit of zero or less means unlimited.
+ */
+class Throttle {
+    private final Bucket rows;
+    private final Bucket bytes;
+    private final Bucket mutations;
+
+    /**
+     * The time source the buckets refill and wait with
+     */
+    interface Ticker {
+        long nanoTime();
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    static final Ticker SYSTEM_TICKER = new Ticker() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        public void sleep(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+
+    public Throttle() {
+        this(SYSTEM_TICKER);
+    }
+
+    /**
+     * @param ticker: the time source, only replaced in tests
+     */
+    Throttle(Ticker ticker) {
+        rows = new Bucket(ticker);
+        bytes = new Bucket(ticker);
+        mutations = new Bucket(ticker);
+    }
+
+    public void setMaxRowsPerSecond(double rate) {
+        rows.setRate(rate);
+    }
+
+    public double getMaxRowsPerSecond() {
+        return rows.getRate();
+    }
+
+    public void setMaxBytesPerSecond(double rate) {
+        bytes.setRate(rate);
+    }
+
+    public double getMaxBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    public void setMaxMutationsPerSecond(double rate) {
+        mutations.setRate(rate);
+    }
+
+    public double getMaxMutationsPerSecond() {
+        return mutations.getRate();
+    }
+
+    /**
+     * Waits until the given number of rows may be read
+     *
+     * @param count
+     * @throws RepairException if interrupted while waiting
+     */
+    public void rows(long count) throws RepairException {
+        rows.acquire(count);
+    }
+
+    /**
+     * Waits until the given number of bytes may be read or written
+     *
+     * @param count
+     * @throws RepairException if interrupted while waiting
+     */
+    public void bytes(long count) throws RepairException {
+        bytes.acquire(count);
+    }
+
+    /**
+     * Waits until the bytes of the given entries may be read
+     *
+     * @param entries
+     * @throws RepairException if interrupted while waiting
+     */
+    public void entries(List<Entry> entries) throws RepairException {
+        long count = 0;
+        for (Entry entry: entries) {
+            count += entry.getColumn().remaining() + entry.getValue().remaining();
+        }
+        bytes.acquire(count);
+    }
+
+    /**
+     * Waits until the given number of mutations may be written
+     *
+     * @param count
+     * @throws RepairException if interrupted while waiting
+     */
+    public void mutations(long count) throws RepairException {
+        mutations.acquire(count);
+    }
+
+    private static class Bucket {
+        private final Ticker ticker;
+        private double rate = 0;
+        private double available = 0;
+        private long lastRefill;
+
+        Bucket(Ticker ticker) {
+            this.ticker = ticker;
+            this.lastRefill = ticker.nanoTime();
+        }
+
+        synchronized void setRate(double rate) {
+            refill(ticker.nanoTime());
+            this.rate = rate;
+            available = Math.min(available, Math.max(rate, 0));
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        void acquire(long permits) throws RepairException {
+            long waitNanos;
+            synchronized (this) {
+                if (rate <= 0 || permits <= 0) return;
+                refill(ticker.nanoTime());
+                available -= permits;
+                waitNanos = available < 0 ? (long) (-available / rate * 1e9) : 0;
+            }
+            if (waitNanos > 0) {
+                try {
+                    ticker.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RepairException(e);
+                }
+            }
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                available = Math.min(rate, available + (now - lastRefill) / 1e9 * rate);
+            }
+            lastRefill = now;
+        }
+    }
+}
@@ -3,16 +3,11 @@ package com.shift.titantools;
 import com.thinkaurelius.titan.core.*;
 import com.thinkaurelius.titan.diskstorage.Backend;
 import com.thinkaurelius.titan.diskstorage.BackendTransaction;
-import com.thinkaurelius.titan.diskstorage.StorageException;
 import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
 import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
-import com.thinkaurelius.titan.diskstorage.keycolumnvalue.RecordIterator;
 import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
-import com.thinkaurelius.titan.diskstorage.util.ByteBufferUtil;
-import com.thinkaurelius.titan.graphdb.database.BackendMutator;
 import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
 import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
-import com.thinkaurelius.titan.graphdb.database.idhandling.VariableLong;
 import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
 import com.thinkaurelius.titan.graphdb.query.AtomicQuery;
 import com.thinkaurelius.titan.graphdb.query.SimpleTitanQuery;
@@ -21,367 +16,1152 @@ import com.thinkaurelius.titan.graphdb.types.manager.TypeManager;
 import com.thinkaurelius.titan.graphdb.types.system.SystemKey;
 import com.thinkaurelius.titan.graphdb.vertices.InternalTitanVertex;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Wraps a Titan graph and exposes various utility methods
  */
 public class TitanGraphTools {
     private StandardTitanGraph graph;
-    private Method getIndexKeyMethod;
-    private Method getIndexValueMethod;
-    private Method getKeyedIndexColumnMethod;
-    private Method getIndexColumnMethod;
 
-    private Method deleteIndexEntryMethod;
-    private Method addIndexEntryMethod;
+    private static final int TYPE_ID_CACHE_SIZE = 65536;
+
+    private int scanThreads = 1;
+    private int scanQueueSize = 1000;
+    private int readAhead = 8;
+    private int lookupThreads = 4;
+    private int lookupBatchSize = 200;
+    private int repairBatchSize = 500;
+    private long repairBatchBytes = 1024 * 1024;
+    private int writeThreads = 1;
+    private int writeQueueSize = 4;
+    private int reindexBatchSize = 10000;
+    private long reindexBatchBytes = 8 * 1024 * 1024;
+    private int readTxSize = 1000;
+    private String spillDirectory = System.getProperty("java.io.tmpdir");
+    private long spillBytes = 64 * 1024 * 1024;
+    private String checkpointFile = null;
+    private int checkpointInterval = 10000;
+    private String watermarkFile = null;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private long[] partitions = null;
+    private final Throttle throttle = new Throttle();
+    private final Backpressure backpressure = new Backpressure();
+    private final List<ScanListener> listeners = new ArrayList<ScanListener>();
+    private final ScanListener consoleListener = new ConsoleListener();
+    private boolean jmxEnabled = true;
+    private String reportFile = null;
+    private long estimatedRows = -1;
 
-    private Method queryForEntriesMethod;
-    private Method getTypeFromIDMethod;
+    public TitanGraphTools(StandardTitanGraph graph) throws RepairException {
+        this.graph = graph;
+        GraphAccessors.check();
+        listeners.add(consoleListener);
+    }
+
+    public static TitanGraphTools create(StandardTitanGraph graph) throws RepairException {
+        return new TitanGraphTools(graph);
+    }
+
+    /**
+     * Sets the number of threads used to process the rows of a store scan
+     *
+     * @param scanThreads
+     */
+    public void setScanThreads(int scanThreads) {
+        if (scanThreads < 1) throw new IllegalArgumentException("at least one scan thread is required");
+        this.scanThreads = scanThreads;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    /**
+     * Sets the number of row keys that can be read ahead of the scan threads
+     *
+     * @param scanQueueSize
+     */
+    public void setScanQueueSize(int scanQueueSize) {
+        if (scanQueueSize < 1) throw new IllegalArgumentException("the scan queue size must be positive");
+        this.scanQueueSize = scanQueueSize;
+    }
+
+    public int getScanQueueSize() {
+        return scanQueueSize;
+    }
+
+    /**
+     * Sets the number of index rows whose slices each scan thread reads
+     * ahead of the row it's validating, so the scan isn't paced by the
+     * latency of each read. With 0, each row is read when it's validated.
+     *
+     * @param readAhead
+     */
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 0) throw new IllegalArgumentException("the read ahead can't be negative");
+        this.readAhead = readAhead;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Sets the number of concurrent vertex lookups each scan thread
+     * makes when validating a batch of index entries, and of concurrent
+     * index entry reads when verifying a batch of vertices
+     *
+     * @param lookupThreads
+     */
+    public void setLookupThreads(int lookupThreads) {
+        if (lookupThreads < 1) throw new IllegalArgumentException("at least one lookup thread is required");
+        this.lookupThreads = lookupThreads;
+    }
+
+    public int getLookupThreads() {
+        return lookupThreads;
+    }
+
+    /**
+     * Sets the number of index entries collected before the vertices
+     * they point to are looked up, or before they're read back when
+     * verifying vertices, spread over the lookup threads
+     *
+     * @param lookupBatchSize
+     */
+    public void setLookupBatchSize(int lookupBatchSize) {
+        if (lookupBatchSize < 1) throw new IllegalArgumentException("the lookup batch size must be positive");
+        this.lookupBatchSize = lookupBatchSize;
+    }
+
+    public int getLookupBatchSize() {
+        return lookupBatchSize;
+    }
+
+    /**
+     * Sets the number of index additions and deletions buffered before
+     * they're written out in a single transaction
+     *
+     * @param repairBatchSize
+     */
+    public void setRepairBatchSize(int repairBatchSize) {
+        if (repairBatchSize < 1) throw new IllegalArgumentException("the repair batch size must be positive");
+        this.repairBatchSize = repairBatchSize;
+    }
+
+    public int getRepairBatchSize() {
+        return repairBatchSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of the buffered index additions and deletions
+     * at which they're written out, whatever their number
+     *
+     * @param repairBatchBytes
+     */
+    public void setRepairBatchBytes(long repairBatchBytes) {
+        if (repairBatchBytes < 1) throw new IllegalArgumentException("the repair batch bytes must be positive");
+        this.repairBatchBytes = repairBatchBytes;
+    }
+
+    public long getRepairBatchBytes() {
+        return repairBatchBytes;
+    }
+
+    /**
+     * Sets the number of threads writing batches of index repairs, while
+     * the scan threads go on reading and validating rows. With 0, each
+     * scan thread writes its own batches.
+     *
+     * @param writeThreads
+     */
+    public void setWriteThreads(int writeThreads) {
+        if (writeThreads < 0) throw new IllegalArgumentException("the number of write threads can't be negative");
+        this.writeThreads = writeThreads;
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    /**
+     * Sets the number of full batches of index repairs that can wait for a
+     * write thread. Once they're all waiting, the scan threads write their
+     * batches themselves, which slows the reads down to the pace of the writes.
+     *
+     * @param writeQueueSize
+     */
+    public void setWriteQueueSize(int writeQueueSize) {
+        if (writeQueueSize < 1) throw new IllegalArgumentException("the write queue size must be positive");
+        this.writeQueueSize = writeQueueSize;
+    }
+
+    public int getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    /**
+     * Sets the number of properties reindexType writes per transaction. No
+     * more than this many vertices are read per transaction either.
+     *
+     * @param reindexBatchSize
+     */
+    public void setReindexBatchSize(int reindexBatchSize) {
+        if (reindexBatchSize < 1) throw new IllegalArgumentException("the reindex batch size must be positive");
+        this.reindexBatchSize = reindexBatchSize;
+    }
+
+    public int getReindexBatchSize() {
+        return reindexBatchSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of the index entries reindexType writes per
+     * transaction, whatever their number
+     *
+     * @param reindexBatchBytes
+     */
+    public void setReindexBatchBytes(long reindexBatchBytes) {
+        if (reindexBatchBytes < 1) throw new IllegalArgumentException("the reindex batch bytes must be positive");
+        this.reindexBatchBytes = reindexBatchBytes;
+    }
+
+    public long getReindexBatchBytes() {
+        return reindexBatchBytes;
+    }
+
+    /**
+     * Sets the number of vertices cleanVertices reads through a transaction
+     * before replacing it, which bounds the vertices each scan thread caches
+     *
+     * @param readTxSize
+     */
+    public void setReadTxSize(int readTxSize) {
+        if (readTxSize < 1) throw new IllegalArgumentException("the read transaction size must be positive");
+        this.readTxSize = readTxSize;
+    }
+
+    public int getReadTxSize() {
+        return readTxSize;
+    }
+
+    /**
+     * Sets the directory checkTypesByJoin writes its sorted runs to, which
+     * needs room for about 40 bytes per vertex value and index entry, plus
+     * the index row keys
+     *
+     * @param spillDirectory
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets the amount of heap checkTypesByJoin buffers records in, across
+     * all scan threads, before sorting them and writing them out as a run.
+     * Bigger buffers make fewer runs to merge.
+     *
+     * @param spillBytes
+     */
+    public void setSpillBytes(long spillBytes) {
+        if (spillBytes < 1) throw new IllegalArgumentException("the spill size must be positive");
+        this.spillBytes = spillBytes;
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    /**
+     * Sets the file scan progress is recorded in. If the file exists when a
+     * scan starts, and was written by the same kind of scan, the scan resumes
+     * from the position it records instead of starting from the first key.
+     * The file is removed once a scan completes. Set to null to disable
+     * checkpointing.
+     *
+     * @param checkpointFile
+     */
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets the number of completed rows between checkpoint writes
+     *
+     * @param checkpointInterval
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 1) throw new IllegalArgumentException("the checkpoint interval must be positive");
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets the file the highest vertex ids seen by a vertex scan are recorded
+     * in. If the file exists when cleanVertices, checkVertices,
+     * checkTypeEntries or repairTypeEntries start, and was written by the
+     * same kind of scan, only the vertices added since it was written are
+     * processed. Every row key is still read to find them, only the reads
+     * and repairs of the older vertices are skipped. It's updated once a
+     * scan completes. Set to null to scan every vertex.
+     *
+     * @param watermarkFile
+     */
+    public void setWatermarkFile(String watermarkFile) {
+        this.watermarkFile = watermarkFile;
+    }
+
+    public String getWatermarkFile() {
+        return watermarkFile;
+    }
+
+    /**
+     * Splits the full scans of repairType, reindexType, cleanVertices and
+     * the type entry checks into the given number of shards, and only scans
+     * one of them. Every process running with the same count and a different
+     * index scans different rows, so a job can be spread over several hosts
+     * without coordinating them. Each process should have its own checkpoint
+     * and watermark files. Targeted repairs aren't sharded.
+     *
+     * @param index: the shard to scan, from 0 to count - 1
+     * @param count: the number of shards, 1 scans everything
+     */
+    public void setShard(int index, int count) {
+        if (count < 1) throw new IllegalArgumentException("the shard count must be positive");
+        if (index < 0 || index >= count) throw new IllegalArgumentException("the shard index must be between 0 and " + (count - 1));
+        this.shardIndex = index;
+        this.shardCount = count;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Restricts the full vertex scans, reindexType, cleanVertices and the
+     * type entry checks, to the vertices of the given id partitions, see
+     * getIdManager. Index rows aren't stored by vertex, so index scans are
+     * only split by setShard.
+     *
+     * @param partitions: the partitions to scan, none to scan them all
+     */
+    public void setPartitions(long... partitions) {
+        this.partitions = partitions == null || partitions.length == 0 ? null : partitions.clone();
+    }
+
+    public long[] getPartitions() {
+        return partitions == null ? null : partitions.clone();
+    }
+
+    /**
+     * Caps the number of rows scans read per second. The limits can be
+     * changed while a scan is running, zero or less removes the limit.
+     *
+     * @param rate
+     */
+    public void setMaxRowsPerSecond(double rate) {
+        throttle.setMaxRowsPerSecond(rate);
+    }
+
+    public double getMaxRowsPerSecond() {
+        return throttle.getMaxRowsPerSecond();
+    }
+
+    /**
+     * Caps the number of bytes read from, and written to, the stores per second
+     *
+     * @param rate
+     */
+    public void setMaxBytesPerSecond(double rate) {
+        throttle.setMaxBytesPerSecond(rate);
+    }
+
+    public double getMaxBytesPerSecond() {
+        return throttle.getMaxBytesPerSecond();
+    }
+
+    /**
+     * Caps the number of index and edge store mutations written per second
+     *
+     * @param rate
+     */
+    public void setMaxMutationsPerSecond(double rate) {
+        throttle.setMaxMutationsPerSecond(rate);
+    }
+
+    public double getMaxMutationsPerSecond() {
+        return throttle.getMaxMutationsPerSecond();
+    }
+
+    Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the p99 store call latency scans aim for. Above it, fewer scan
+     * threads are allowed to process rows at once, well below it, more
+     * are, up to setScanThreads. Zero or less disables the adjustment.
+     *
+     * @param millis
+     */
+    public void setTargetLatency(long millis) {
+        backpressure.setTargetLatency(millis);
+    }
+
+    public long getTargetLatency() {
+        return backpressure.getTargetLatency();
+    }
+
+    /**
+     * Sets the number of times a store call that timed out, or failed with
+     * another temporary storage exception, is retried before a scan fails
+     *
+     * @param maxRetries
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) throw new IllegalArgumentException("the number of retries can't be negative");
+        backpressure.setMaxRetries(maxRetries);
+    }
+
+    public int getMaxRetries() {
+        return backpressure.getMaxRetries();
+    }
+
+    Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * Adds a listener that's told about the progress of every scan
+     *
+     * @param listener
+     */
+    public synchronized void addListener(ScanListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(ScanListener listener) {
+        listeners.remove(listener);
+    }
+
+    synchronized List<ScanListener> getListeners() {
+        return new ArrayList<ScanListener>(listeners);
+    }
+
+    /**
+     * Turns the progress lines printed during scans on or off
+     *
+     * @param enabled
+     */
+    public synchronized void setConsoleProgress(boolean enabled) {
+        listeners.remove(consoleListener);
+        if (enabled) listeners.add(0, consoleListener);
+    }
+
+    /**
+     * Turns publishing the metrics of running scans over JMX on or off. The
+     * metrics are registered as com.shift.titantools:type=Scan,name="job"
+     *
+     * @param jmxEnabled
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Sets the file the problems found by scans are appended to, as one
+     * JSON object per line, gzip compressed if the name ends in .gz. They're
+     * printed to the console if this is null.
+     *
+     * @param reportFile
+     */
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * Sets the number of rows scans are expected to cover, which is what
+     * the ETA in their progress is based on. -1 means unknown.
+     *
+     * @param estimatedRows
+     */
+    public void setEstimatedRows(long estimatedRows) {
+        this.estimatedRows = estimatedRows;
+    }
+
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    /**
+     * Opens the checkpoint for the given job, or returns null if checkpointing is disabled
+     *
+     * @param job
+     * @param counterCount
+     * @return
+     * @throws RepairException
+     */
+    Checkpoint openCheckpoint(String job, int counterCount) throws RepairException {
+        if (checkpointFile == null) return null;
+        return Checkpoint.open(checkpointFile, job, counterCount, checkpointInterval);
+    }
+
+    /**
+     * Returns the filter selecting the vertex rows of the shard and partitions
+     * to scan, or null if every row is scanned
+     *
+     * @param range: the job range to scan in place of the shard, or null
+     * @return
+     * @throws RepairException
+     */
+    ShardFilter vertexShard(JobRange range) throws RepairException {
+        int index = range == null ? shardIndex : range.index;
+        int count = range == null ? shardCount : range.count;
+        if (count == 1 && partitions == null) return null;
+        return new ShardFilter(index, count, partitions, getIdManager());
+    }
+
+    /**
+     * Returns the filter selecting the index rows of the shard to scan, or
+     * null if every row is scanned
+     *
+     * @param range: the job range to scan in place of the shard, or null
+     * @return
+     */
+    ShardFilter indexShard(JobRange range) {
+        int index = range == null ? shardIndex : range.index;
+        int count = range == null ? shardCount : range.count;
+        if (count == 1) return null;
+        return new ShardFilter(index, count, null, null);
+    }
+
+    /**
+     * Opens the watermark for the given vertex scan, or returns null if there's no watermark file
+     *
+     * @param job
+     * @return
+     * @throws RepairException
+     */
+    Watermark openWatermark(String job) throws RepairException {
+        if (watermarkFile == null) return null;
+        Watermark watermark = Watermark.open(watermarkFile, job, getIdManager());
+        System.out.println(watermark.isLoaded()
+                ? "only vertices added since watermark " + watermark + " will be scanned"
+                : "no watermark at " + watermark + ", every vertex will be scanned");
+        return watermark;
+    }
+
+    /**
+     * Creates the pool vertex lookups are made on, or returns null
+     * if lookups should be made on the scan threads
+     *
+     * @return
+     */
+    private ExecutorService newLookupPool() {
+        if (lookupThreads < 2) return null;
+        return Executors.newFixedThreadPool(scanThreads * lookupThreads, new DaemonThreadFactory("titan-tools-lookup"));
+    }
+
+    /**
+     * Creates the pool the index slices are read ahead on, enough threads
+     * for every scan thread to keep its whole read ahead in flight
+     *
+     * @return the pool, or null if rows aren't read ahead
+     */
+    private ExecutorService newPrefetchPool() {
+        if (readAhead < 1) return null;
+        return Executors.newFixedThreadPool(scanThreads * readAhead, new DaemonThreadFactory("titan-tools-prefetch"));
+    }
 
-    private Field backendField;
-    private Field typeManagerField;
-    private Field idManagerField;
+    /**
+     * Calls the getIndexKey method on the graph object
+     *
+     * @param att
+     * @return
+     * @throws com.shift.titantools.RepairException
+     */
+    public ByteBuffer getIndexKey(Object att) throws RepairException {
+        return GraphAccessors.getIndexKey(graph, att);
+    }
+
+    /**
+     * Calls the getIndexValue method on the graph object
+     *
+     * @param prop
+     * @return
+     * @throws com.shift.titantools.RepairException
+     */
+    public ByteBuffer getIndexValue(TitanProperty prop) throws RepairException {
+        return GraphAccessors.getIndexValue(graph, prop);
+    }
+
+    /**
+     * Calls the getKeyedIndexColumn method on the graph object
+     *
+     * @param type
+     * @return
+     * @throws com.shift.titantools.RepairException
+     */
+    public ByteBuffer getKeyedIndexColumn(TitanKey type) throws RepairException {
+        return GraphAccessors.getKeyedIndexColumn(graph, type);
+    }
+
+    /**
+     * Calls the getIndexColumn method on the graph object
+     *
+     * @param type
+     * @param propertyID
+     * @return
+     * @throws RepairException
+     */
+    public ByteBuffer getIndexColumn(TitanKey type, long propertyID) throws RepairException {
+        return GraphAccessors.getIndexColumn(graph, type, propertyID);
+    }
+
+    public List<Entry> queryForEntries(AtomicQuery query, StoreTransaction txh) throws RepairException {
+        return GraphAccessors.queryForEntries(graph, query, txh);
+    }
+
+    final TitanType getTypeFromID(long etid, InternalTitanTransaction tx) throws RepairException {
+        return GraphAccessors.getTypeFromID(graph, etid, tx);
+    }
+
+    /**
+     * Returns the backend instance of the wrapped graph
+     *
+     * @return
+     * @throws RepairException
+     */
+    public Backend getBackend() throws RepairException {
+        return GraphAccessors.getBackend(graph);
+    }
+
+    public IDManager getIdManager() throws RepairException {
+        return GraphAccessors.getIdManager(graph);
+    }
+
+    /**
+     * Returns a coordinator that runs a job together with the other
+     * processes running the same job, see JobCoordinator. The process is
+     * identified by its pid and host name
+     *
+     * @param job: names the job, every process running it must use the same name
+     * @param ranges: the number of ranges the job is cut into, each process scans a range at a time
+     * @return
+     * @throws RepairException
+     */
+    public JobCoordinator coordinator(String job, int ranges) throws RepairException {
+        return coordinator(job, ranges, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Returns a coordinator that runs a job together with the other
+     * processes running the same job, see JobCoordinator
+     *
+     * @param job: names the job, every process running it must use the same name
+     * @param ranges: the number of ranges the job is cut into
+     * @param workerId: identifies this process among those running the job
+     * @return
+     * @throws RepairException
+     */
+    public JobCoordinator coordinator(String job, int ranges, String workerId) throws RepairException {
+        return new JobCoordinator(this, job, ranges, workerId);
+    }
+
+    /**
+     * Returns the type manager instance of the wrapped graph
+     *
+     * @return
+     * @throws RepairException
+     */
+    public TypeManager getTypeManager() throws RepairException {
+        return GraphAccessors.getTypeManager(graph);
+    }
+
+    public TitanKey makeType(String name, Class<?> type, Boolean indexed, Boolean unique) {
+        TitanTransaction tx = graph.newTransaction();
+        TypeMaker t = tx.makeType().name(name).simple().functional();
+        if (unique) t = t.unique();
+        if (indexed) t = t.indexed();
+        TitanKey k = t.dataType(type).group(TypeGroup.DEFAULT_GROUP).makePropertyKey();
+        tx.commit();
+        return k;
+    }
+
+    /**
+     * Repairs the index associated with the given type. Note that this
+     * method only takes action if it detects an index entry that points
+     * to a vertex that either doesn't exist, or whose value for the given
+     * type doesn't match the index value pointing to it. It does not
+     * perform an exhaustive examination of all vertices to check that
+     * they are properly indexed, run repairTypeEntries to add the entries
+     * that are missing, or reindexType to reindex every occurrence of a
+     * property.
+     *
+     * When an incorrect index entry is found, the erroneous index entry is
+     * deleted. If the vertex still exists, * and still contains that the
+     * property, the index is updated with the correct property.
+     *
+     * @param type: the type to examine
+     * @param repair: inconsistencies are repaired if this is set to true
+     * @return
+     * @throws RepairException
+     */
+    protected void repairType(TitanType type, boolean repair) throws RepairException {
+        repairTypes(Collections.singletonList(type), repair);
+    }
+
+    /**
+     * Repairs the indexes associated with the given types. This works the
+     * same way as repairType, but each index row is read once, with the
+     * entries of every given type, so checking several types costs a single
+     * scan of the index.
+     *
+     * @param types: the types to examine
+     * @param repair: inconsistencies are repaired if this is set to true
+     * @throws RepairException
+     */
+    public void repairTypes(Collection<? extends TitanType> types, boolean repair) throws RepairException {
+        repairTypes(types, null, repair);
+    }
+
+    /**
+     * Repairs the indexes associated with the given types in the given index
+     * rows only, rather than the whole index. Rows can be given as their
+     * keys, ByteBuffers, or as values of the types, whose rows are looked up.
+     * This is meant for fixing a few known bad rows, from a report or an
+     * application audit log, without scanning everything. Runs given rows
+     * aren't checkpointed.
+     *
+     * @param types: the types to examine
+     * @param rows: the index rows to examine, or null for every row
+     * @param repair: inconsistencies are repaired if this is set to true
+     * @throws RepairException
+     */
+    public void repairTypes(Collection<? extends TitanType> types, Iterator<?> rows, boolean repair) throws RepairException {
+        repairTypes(types, rows, repair, null);
+    }
+
+    /**
+     * Repairs the indexes associated with the given types in one range of a
+     * JobCoordinator job, see repairTypes
+     *
+     * @param types
+     * @param rows
+     * @param repair
+     * @param range: the range to scan in place of the shard, or null
+     * @throws RepairException
+     */
+    void repairTypes(Collection<? extends TitanType> types, Iterator<?> rows, boolean repair, JobRange range) throws RepairException {
+        List<TitanKey> titanKeys = indexedKeys(types);
+        List<ByteBuffer> rowKeys = rows == null ? null : indexRowKeys(rows);
+
+        ShardFilter shard = rowKeys == null ? indexShard(range) : null;
+        StringBuilder job = new StringBuilder(repair ? "repairTypes" : "checkTypes");
+        if (rowKeys != null) job.append(" targeted");
+        for (TitanKey titanKey: titanKeys) job.append(' ').append(titanKey.getName());
+        if (shard != null) job.append(' ').append(shard);
+        //targeted runs are short, and their rows differ from run to run, so they
+        //aren't checkpointed, and a job's progress is kept per range by its coordinator
+        ParallelScanner scanner = new ParallelScanner(
+                this, job.toString(), "keys inspected", IndexRepairWorker.counterNames(titanKeys), rowKeys == null && range == null
+        );
+        scanner.addKeyFilter(shard);
+        scanner.setJobRange(range);
+        scanIndex(scanner, titanKeys, rowKeys, repair);
+
+        long[] counters = scanner.getCounters();
+        for (int i=0; i<titanKeys.size(); i++) {
+            int offset = i * IndexRepairWorker.COUNTERS_PER_KEY;
+            System.out.println("");
+            System.out.println("[" + titanKeys.get(i).getName() + "] " + (repair?"repair":"check") + " completed");
+            System.out.println("  > " + scanner.getCompletedCount() + " keys examined");
+            System.out.println("  > " + counters[offset + IndexRepairWorker.ENTRIES] + " index entries examined");
+            System.out.println("  > " + counters[offset + IndexRepairWorker.DELETED_VERTICES] + " references to deleted vertices " + (repair?"removed":"detected"));
+            System.out.println("  > " + counters[offset + IndexRepairWorker.MISMATCHED_PROPERTIES] + " incorrectly indexed vertex properties " + (repair?"repaired":"detected"));
+        }
+    }
+
+    /**
+     * Returns the given types as indexed property keys
+     *
+     * @param types
+     * @return
+     * @throws RepairException if a type isn't an indexed property key
+     */
+    private List<TitanKey> indexedKeys(Collection<? extends TitanType> types) throws RepairException {
+        if (types.isEmpty()) {
+            throw new RepairException("no types were given");
+        }
+
+        List<TitanKey> titanKeys = new ArrayList<TitanKey>(types.size());
+        for (TitanType type: types) {
+            if (!type.isPropertyKey()) {
+                throw new RepairException("the type [" + type.getName() + "] is not a property key");
+            }
+
+            //get the key
+            TitanKey titanKey = (TitanKey) type;
+            if (!titanKey.hasIndex()) {
+                throw new RepairException("the key [" + type.getName() + "] is not an index");
+            }
+            titanKeys.add(titanKey);
+        }
+        return titanKeys;
+    }
+
+    /**
+     * Runs the index workers for the given keys over the given rows, or
+     * over the whole index
+     *
+     * @param scanner
+     * @param titanKeys
+     * @param rowKeys: the index rows to examine, or null for every row
+     * @param repair
+     * @throws RepairException
+     */
+    private void scanIndex(ParallelScanner scanner, List<TitanKey> titanKeys, List<ByteBuffer> rowKeys,
+                           boolean repair) throws RepairException {
+        //begin graph and store transactions
+        InternalTitanTransaction itx = (InternalTitanTransaction) graph.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
 
-    public TitanGraphTools(StandardTitanGraph graph) throws RepairException {
-        this.graph = graph;
-        getPrivateMethods();
-    }
+        KeyColumnValueStore indexStore = getBackend().getVertexIndexStore();
+
+        ExecutorService lookupPool = newLookupPool();
+        VertexBatchLookup lookup = new VertexBatchLookup(graph, lookupPool, lookupThreads, backpressure);
+        RepairWriter writer = new RepairWriter(repair ? writeThreads : 0, writeQueueSize, backpressure);
+        ExecutorService prefetchPool = newPrefetchPool();
+        scanner.setHelperThreads(
+                (lookupPool == null ? 0 : scanThreads * lookupThreads)
+                + (prefetchPool == null ? 0 : scanThreads * readAhead)
+                + (repair ? writeThreads : 0)
+        );
+
+        List<IndexRepairWorker> workers = new ArrayList<IndexRepairWorker>(scanThreads);
+        for (int i=0; i<scanThreads; i++) {
+            workers.add(new IndexRepairWorker(this, graph, titanKeys, repair, lookup, lookupBatchSize,
+                    repairBatchSize, repairBatchBytes, writer, prefetchPool, readAhead));
+        }
 
-    public static TitanGraphTools create(StandardTitanGraph graph) throws RepairException {
-        return new TitanGraphTools(graph);
+        try {
+            if (rowKeys != null) {
+                scanner.scan(rowKeys.iterator(), workers);
+            } else {
+                //we need to iterate over all keys in the index
+                scanner.scan(indexStore, stx, workers);
+            }
+        } finally {
+            //cleanup
+            if (lookupPool != null) lookupPool.shutdownNow();
+            if (prefetchPool != null) prefetchPool.shutdownNow();
+            writer.shutdown();
+            itx.commit();
+        }
     }
 
     /**
-     * pulls out the private graph methods we need for index repair and testing, and makes them
-     * publicly accessible
+     * Estimates how corrupt the indexes of the given types are, by checking
+     * a random fraction of the index rows. Every key of the index is still
+     * read, but only the sampled rows are sliced and have their vertices
+     * looked up, which is where a check spends its time. Nothing is
+     * repaired, findings go to the report file as usual.
      *
+     * @param types: the types to examine
+     * @param fraction: the fraction of the index rows to check, between 0 and 1
+     * @param seed: seeds the choice of rows, the same seed picks the same rows
+     * @return an estimate per type
      * @throws RepairException
      */
-    private void getPrivateMethods() throws RepairException {
-        try {
-            getIndexKeyMethod = graph.getClass().getDeclaredMethod("getIndexKey", Object.class);
-            getIndexKeyMethod.setAccessible(true);
-
-            getIndexValueMethod = graph.getClass().getDeclaredMethod("getIndexValue", TitanProperty.class);
-            getIndexValueMethod.setAccessible(true);
-
-            getKeyedIndexColumnMethod = graph.getClass().getDeclaredMethod("getKeyedIndexColumn", TitanKey.class);
-            getKeyedIndexColumnMethod.setAccessible(true);
-
-            getIndexColumnMethod = graph.getClass().getDeclaredMethod("getIndexColumn", TitanKey.class, long.class);
-            getIndexColumnMethod.setAccessible(true);
-
-            deleteIndexEntryMethod = graph.getClass().getDeclaredMethod("deleteIndexEntry", TitanProperty.class, BackendMutator.class);
-            deleteIndexEntryMethod.setAccessible(true);
-
-            addIndexEntryMethod = graph.getClass().getDeclaredMethod("addIndexEntry", TitanProperty.class, BackendMutator.class);
-            addIndexEntryMethod.setAccessible(true);
-
-            queryForEntriesMethod = graph.getClass().getDeclaredMethod("queryForEntries", AtomicQuery.class, StoreTransaction.class);
-            queryForEntriesMethod.setAccessible(true);
-
-            getTypeFromIDMethod = graph.getClass().getDeclaredMethod("getTypeFromID", long.class, InternalTitanTransaction.class);
-            getTypeFromIDMethod.setAccessible(true);
-
-            backendField = graph.getClass().getDeclaredField("backend");
-            backendField.setAccessible(true);
-
-            typeManagerField = graph.getClass().getDeclaredField("etManager");
-            typeManagerField.setAccessible(true);
-
-            idManagerField = graph.getClass().getDeclaredField("idManager");
-            idManagerField.setAccessible(true);
+    public List<IndexEstimate> sampleTypes(Collection<? extends TitanType> types, final double fraction, long seed) throws RepairException {
+        if (fraction <= 0 || fraction > 1) {
+            throw new RepairException("the sample fraction must be above 0 and at most 1, not " + fraction);
+        }
+        List<TitanKey> titanKeys = indexedKeys(types);
+
+        StringBuilder job = new StringBuilder("sampleTypes");
+        for (TitanKey titanKey: titanKeys) job.append(' ').append(titanKey.getName());
+        //a sample is quick to take again, and its rows depend on the seed.
+        //the filter only drops keys once they're read, there's no way to
+        //ask the store for a sample of its keys
+        ParallelScanner scanner = new ParallelScanner(
+                this, job.toString(), "keys sampled", IndexRepairWorker.counterNames(titanKeys), false
+        );
+        final Random random = new Random(seed);
+        scanner.addKeyFilter(new KeyFilter() {
+            public boolean accept(ByteBuffer key) {
+                return random.nextDouble() < fraction;
+            }
+        });
+        scanIndex(scanner, titanKeys, null, false);
 
-        } catch (NoSuchFieldException e) {
-            throw new RepairException(e);
-        } catch (NoSuchMethodException e) {
-            throw new RepairException(e);
+        long[] counters = scanner.getCounters();
+        List<IndexEstimate> estimates = new ArrayList<IndexEstimate>(titanKeys.size());
+        System.out.println("");
+        System.out.println(scanner.getCompletedCount() + " index rows sampled, " + fraction * 100 + "% with seed " + seed);
+        for (int i=0; i<titanKeys.size(); i++) {
+            int offset = i * IndexRepairWorker.COUNTERS_PER_KEY;
+            IndexEstimate estimate = new IndexEstimate(
+                    titanKeys.get(i).getName(), fraction, scanner.getCompletedCount(),
+                    counters[offset + IndexRepairWorker.ENTRIES],
+                    counters[offset + IndexRepairWorker.DELETED_VERTICES],
+                    counters[offset + IndexRepairWorker.MISMATCHED_PROPERTIES]
+            );
+            System.out.println("  > " + estimate);
+            estimates.add(estimate);
         }
+        return estimates;
     }
 
     /**
-     * Calls the getIndexKey method on the graph object
+     * Estimates how corrupt the index of the given type is, from a random
+     * fraction of its rows. Every index key is still read, see sampleTypes
      *
-     * @param att
+     * @param typeName
+     * @param fraction: the fraction of the index rows to check, like 0.01
      * @return
-     * @throws com.shift.titantools.RepairException
+     * @throws RepairException
      */
-    public ByteBuffer getIndexKey(Object att) throws RepairException {
-        try {
-            return (ByteBuffer) getIndexKeyMethod.invoke(graph, att);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+    public IndexEstimate sampleType(String typeName, double fraction) throws RepairException {
+        return sampleTypes(getTypes(typeName), fraction, System.currentTimeMillis()).get(0);
     }
 
     /**
-     * Calls the getIndexValue method on the graph object
+     * Repairs the indexes associated with the given types, reading
+     * each index row once for all of them
      *
-     * @param prop
-     * @return
-     * @throws com.shift.titantools.RepairException
+     * @param typeNames
+     * @throws RepairException
      */
-    public ByteBuffer getIndexValue(TitanProperty prop) throws RepairException {
-        try {
-            return (ByteBuffer) getIndexValueMethod.invoke(graph, prop);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+    public void repairTypes(String... typeNames) throws RepairException {
+        repairTypes(getTypes(typeNames), true);
     }
 
     /**
-     * Calls the getKeyedIndexColumn method on the graph object
+     * Detects problems with the indexes associated with the given types,
+     * reading each index row once for all of them
      *
-     * @param type
-     * @return
-     * @throws com.shift.titantools.RepairException
+     * @param typeNames
+     * @throws RepairException
      */
-    public ByteBuffer getKeyedIndexColumn(TitanKey type) throws RepairException {
-        try {
-            return (ByteBuffer) getKeyedIndexColumnMethod.invoke(graph, type);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+    public void checkTypes(String... typeNames) throws RepairException {
+        repairTypes(getTypes(typeNames), false);
     }
 
     /**
-     * Calls the getIndexColumn method on the graph object
+     * Repairs the index associated with the given type in the given rows
+     * only, see repairTypes
      *
-     * @param type
-     * @param propertyID
-     * @return
+     * @param typeName
+     * @param rows: index row keys, or values of the type
      * @throws RepairException
      */
-    public ByteBuffer getIndexColumn(TitanKey type, long propertyID) throws RepairException {
-        try {
-            return (ByteBuffer) getIndexColumnMethod.invoke(graph, type, propertyID);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+    public void repairType(String typeName, Iterator<?> rows) throws RepairException {
+        repairTypes(getTypes(typeName), rows, true);
     }
 
-    private void deleteIndexEntry(TitanProperty prop, BackendMutator mutator) throws RepairException {
-        try {
-            deleteIndexEntryMethod.invoke(graph, prop, mutator);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+    /**
+     * Detects problems with the index associated with the given type in the
+     * given rows only, see repairTypes
+     *
+     * @param typeName
+     * @param rows: index row keys, or values of the type
+     * @throws RepairException
+     */
+    public void checkType(String typeName, Iterator<?> rows) throws RepairException {
+        repairTypes(getTypes(typeName), rows, false);
     }
 
-    private void addIndexEntry(TitanProperty prop, BackendMutator mutator) throws RepairException {
-        try {
-            addIndexEntryMethod.invoke(graph, prop, mutator);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
+    /**
+     * Converts the given index rows to their keys, dropping duplicates
+     */
+    private List<ByteBuffer> indexRowKeys(Iterator<?> rows) throws RepairException {
+        Set<ByteBuffer> keys = new LinkedHashSet<ByteBuffer>();
+        while (rows.hasNext()) {
+            Object row = rows.next();
+            if (row == null) continue;
+            keys.add(row instanceof ByteBuffer ? (ByteBuffer) row : getIndexKey(row));
         }
-
+        return new ArrayList<ByteBuffer>(keys);
     }
 
-    public List<Entry> queryForEntries(AtomicQuery query, StoreTransaction txh) throws RepairException {
-        try {
-            return (List<Entry>) queryForEntriesMethod.invoke(graph, query, txh);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
+    /**
+     * Converts the given vertex ids, numbers or strings, to their edge store
+     * row keys, dropping duplicates
+     */
+    private static Iterator<ByteBuffer> vertexRowKeys(Iterator<?> vertexIds) throws RepairException {
+        //ids are kept as primitives, and only turned into row keys as the scan reads them
+        LongSet seen = new LongSet();
+        final LongList ids = new LongList();
+        while (vertexIds.hasNext()) {
+            Object id = vertexIds.next();
+            if (id == null) continue;
+            try {
+                long eid = id instanceof Number ? ((Number) id).longValue() : Long.parseLong(id.toString().trim());
+                if (seen.add(eid)) ids.add(eid);
+            } catch (NumberFormatException e) {
+                throw new RepairException("invalid vertex id: " + id);
+            }
         }
-    }
+        return new Iterator<ByteBuffer>() {
+            private int next = 0;
 
-    private final TitanType getTypeFromID(long etid, InternalTitanTransaction tx) throws RepairException {
-        try {
-            return (TitanType) getTypeFromIDMethod.invoke(graph, etid, tx);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        } catch (InvocationTargetException e) {
-            throw new RepairException(e);
-        }
+            public boolean hasNext() {
+                return next < ids.size();
+            }
+
+            public ByteBuffer next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return IDHandler.getKey(ids.get(next++));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
-     * Returns the backend instance of the wrapped graph
+     * Reads the given file, returning its non blank lines. This is meant for
+     * passing lists of values or vertex ids to the targeted repairs, like
+     * fx.cleanVertices(fx.lines("/tmp/suspect-vertices"))
      *
+     * @param path
      * @return
      * @throws RepairException
      */
-    public Backend getBackend() throws RepairException {
-        try {
-            return (Backend) backendField.get(graph);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        }
-    }
-
-    public IDManager getIdManager() throws RepairException {
+    public Iterator<String> lines(String path) throws RepairException {
+        List<String> lines = new ArrayList<String>();
         try {
-            return (IDManager) idManagerField.get(graph);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
+            BufferedReader in = new BufferedReader(new FileReader(path));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.trim().length() > 0) lines.add(line.trim());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("the file " + path + " couldn't be read", e);
         }
+        return lines.iterator();
     }
 
     /**
-     * Returns the type manager instance of the wrapped graph
+     * Repairs the problems listed in a report written by an earlier check,
+     * see setReportFile. The rows the findings were made in are examined
+     * again, with the types they were made for, and repaired if they're
+     * still wrong, so nothing is scanned but those rows, and findings that
+     * were fixed in the meantime are left alone.
      *
-     * @return
+     * @param path: the report file
      * @throws RepairException
      */
-    public TypeManager getTypeManager() throws RepairException {
-        try {
-            return (TypeManager) typeManagerField.get(graph);
-        } catch (IllegalAccessException e) {
-            throw new RepairException(e);
-        }
-    }
-
-    private static byte[] getByteArray(ByteBuffer buffer) {
-        int offset = buffer.arrayOffset();
-        byte[] bytes = new byte[buffer.remaining() - offset];
-        System.arraycopy(buffer.array(), offset, bytes, offset, bytes.length);
-        return bytes;
-    }
-
-    public TitanKey makeType(String name, Class<?> type, Boolean indexed, Boolean unique) {
-        TitanTransaction tx = graph.newTransaction();
-        TypeMaker t = tx.makeType().name(name).simple().functional();
-        if (unique) t = t.unique();
-        if (indexed) t = t.indexed();
-        TitanKey k = t.dataType(type).group(TypeGroup.DEFAULT_GROUP).makePropertyKey();
-        tx.commit();
-        return k;
+    public void applyReport(String path) throws RepairException {
+        applyReport(path, true);
     }
 
     /**
-     * Repairs the index associated with the given type. Note that this
-     * method only takes action if it detects an index entry that points
-     * to a vertex that either doesn't exist, or whose value for the given
-     * type doesn't match the index value pointing to it. It does not
-     * perform an exhaustive examination of all vertices to check that
-     * they are properly indexed, run reindexType to reindex every occurrence
-     * of a property.
-     *
-     * When an incorrect index entry is found, the erroneous index entry is
-     * deleted. If the vertex still exists, * and still contains that the
-     * property, the index is updated with the correct property.
+     * Checks whether the problems listed in a report are still there,
+     * without repairing them, see applyReport
      *
-     * @param type: the type to examine
-     * @param repair: inconsistencies are repaired if this is set to true
-     * @return
+     * @param path: the report file
      * @throws RepairException
      */
-    protected void repairType(TitanType type, boolean repair) throws RepairException {
-
-        if (!type.isPropertyKey()) {
-            throw new RepairException("the given type is not a property key");
-        }
-
-        //begin graph and store transactions
-        InternalTitanTransaction itx = (InternalTitanTransaction) graph.newTransaction();
-        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
-
-        //get the key
-//        TitanKey titanKey = itx.getPropertyKey(type.getName());
-        TitanKey titanKey = (TitanKey) type;
-        boolean isSystemKey = titanKey.getName().startsWith("#");
-
-        if (!titanKey.hasIndex()) {
-            throw new RepairException("the given key is not an index");
-        }
+    public void checkReport(String path) throws RepairException {
+        applyReport(path, false);
+    }
 
-        Backend backend = getBackend();
-        KeyColumnValueStore indexStore = backend.getVertexIndexStore();
+    private void applyReport(String path, boolean repair) throws RepairException {
+        Set<String> typeNames = new LinkedHashSet<String>();
+        List<ByteBuffer> indexRows = new ArrayList<ByteBuffer>();
+        LongList vertexIds = new LongList();
+        Map<String, LongList> missingEntries = new LinkedHashMap<String, LongList>();
 
-        int keyCount = 0;
-        int deletedVertexCount = 0;
-        int repairedPropertyCount = 0;
+        ReportReader reader = new ReportReader(path);
         try {
-
-            //we need to iterate over all keys in the index
-            RecordIterator<ByteBuffer> keys = indexStore.getKeys(stx);
-            while (keys.hasNext()) {
-                ByteBuffer key = keys.next();
-                byte[] keyArray = getByteArray(key);
-
-                List<ByteBuffer> deletions = new ArrayList<ByteBuffer>();
-                List<TitanProperty> additions = new ArrayList<TitanProperty>();
-
-                ByteBuffer startCol = VariableLong.positiveByteBuffer(titanKey.getID());
-                List<Entry> columns = indexStore.getSlice(
-                        key,
-                        startCol,
-                        ByteBufferUtil.nextBiggerBuffer(startCol),
-                        stx
-                );
-                for (Entry entry : columns) {
-                    long eid = VariableLong.readPositive(entry.getValue());
-                    TitanVertex v = (TitanVertex) graph.getVertex(eid);
-                    if (v == null) {
-                        deletions.add(entry.getColumn());
-                        System.out.println("deleted vertex found in index");
-                        deletedVertexCount++;
-                    } else if (!isSystemKey) {
-                        //verify that the given property matches
-                        Iterator<TitanProperty> properties = v.getProperties(titanKey.getName()).iterator();
-                        assert properties.hasNext();
-                        TitanProperty property = properties.next();
-                        assert !properties.hasNext();
-                        Object value = property.getAttribute();
-                        ByteBuffer indexKey = getIndexKey(value);
-                        byte[] valueArray = getByteArray(indexKey);
-                        if (!Arrays.equals(keyArray, valueArray)) {
-                            deletions.add(entry.getColumn());
-                            additions.add(property);
-                            System.out.println("value mismatch found in index");
-                            repairedPropertyCount++;
-                        }
-                    }
-                }
-
-                if (repair) {
-                    InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
-                    if (deletions.size() > 0 || additions.size() > 0) {
-                        BackendMutator mutator = new BackendMutator(backend, tx.getTxHandle());
-                        if (deletions.size() > 0) {
-                            indexStore.mutate(key, null, deletions, stx);
-                        }
-                        for (TitanProperty property: additions) {
-                            addIndexEntry(property, mutator);
-                        }
-                        tx.commit();
+            Finding finding;
+            while ((finding = reader.next()) != null) {
+                if (Finding.PARTIAL_VERTEX.equals(finding.kind) || Finding.CORRUPT_RELATIONS.equals(finding.kind)) {
+                    vertexIds.add(finding.vertexId);
+                } else if (Finding.MISSING_ENTRY.equals(finding.kind) && finding.typeName != null) {
+                    LongList ids = missingEntries.get(finding.typeName);
+                    if (ids == null) {
+                        ids = new LongList();
+                        missingEntries.put(finding.typeName, ids);
                     }
+                    ids.add(finding.vertexId);
+                } else if (finding.typeName != null && finding.rowKey != null) {
+                    typeNames.add(finding.typeName);
+                    indexRows.add(finding.rowKey);
                 }
-                keyCount++;
-                if (keyCount % 1000 == 0)
-                    System.out.println(keyCount + " keys inspected");
             }
-        } catch (StorageException e) {
-            throw new RepairException(e);
         } finally {
-            //cleanup
-            itx.commit();
+            reader.close();
+        }
+        int missingCount = 0;
+        for (LongList ids: missingEntries.values()) missingCount += ids.size();
+        System.out.println((indexRows.size() + missingCount) + " index findings and " + vertexIds.size() + " vertex findings read from " + path);
+
+        if (!typeNames.isEmpty()) {
+            List<TitanType> types = new ArrayList<TitanType>(typeNames.size());
+            for (String typeName: typeNames) {
+                types.add(SystemKey.TypeName.getName().equals(typeName) ? SystemKey.TypeName : getTypes(typeName).get(0));
+            }
+            repairTypes(types, indexRows.iterator(), repair);
+        }
+        if (!vertexIds.isEmpty()) {
+            cleanVertices(repair, vertexIds.iterator());
         }
+        for (Map.Entry<String, LongList> missing: missingEntries.entrySet()) {
+            verifyTypeEntries(getTypes(missing.getKey()).get(0), missing.getValue().iterator(), repair);
+        }
+    }
 
-        System.out.println("");
-        System.out.println("[" + type.getName() + "] " + (repair?"repair":"check") + " completed");
-        System.out.println("  > " + keyCount + " keys examined");
-        System.out.println("  > " + deletedVertexCount + " references to deleted vertices " + (repair?"removed":"detected"));
-        System.out.println("  > " + repairedPropertyCount + " incorrectly indexed vertex properties " + (repair?"repaired":"detected"));
+    List<TitanType> getTypes(String... typeNames) throws RepairException {
+        List<TitanType> types = new ArrayList<TitanType>(typeNames.length);
+        for (String typeName: typeNames) {
+            TitanType type = graph.getType(typeName);
+            if (type == null) {
+                throw new RepairException("the type [" + typeName + "] wasn't found");
+            }
+            types.add(type);
+        }
+        return types;
     }
 
     /**
@@ -390,8 +1170,9 @@ public class TitanGraphTools {
      * to a vertex that either doesn't exist, or whose value for the given
      * type doesn't match the index value pointing to it. It does not
      * perform an exhaustive examination of all vertices to check that
-     * they are properly indexed, run reindexType to reindex every occurrence
-     * of a property.
+     * they are properly indexed, run repairTypeEntries to add the entries
+     * that are missing, or reindexType to reindex every occurrence of a
+     * property.
      *
      * When an incorrect index entry is found, the erroneous index entry is
      * deleted. If the vertex still exists, * and still contains that the
@@ -410,8 +1191,9 @@ public class TitanGraphTools {
      * to a vertex that either doesn't exist, or whose value for the given
      * type doesn't match the index value pointing to it. It does not
      * perform an exhaustive examination of all vertices to check that
-     * they are properly indexed, run reindexType to reindex every occurrence
-     * of a property.
+     * they are properly indexed, run repairTypeEntries to add the entries
+     * that are missing, or reindexType to reindex every occurrence of a
+     * property.
      *
      * When an incorrect index entry is found, the erroneous index entry is
      * deleted. If the vertex still exists, * and still contains that the
@@ -471,6 +1253,153 @@ public class TitanGraphTools {
         checkType(type);
     }
 
+    /**
+     * Checks that every value of the given type held by a vertex has its
+     * index entry, which is the direction repairType doesn't look at. Every
+     * vertex is read, and the entry each of its values should have is looked
+     * up in the index. When repairing, only the missing entries are written,
+     * rather than all of them like reindexType does.
+     *
+     * A unique value indexed to another vertex is reported, but left alone,
+     * run repairType on the index to settle which vertex it belongs to.
+     *
+     * @param type: the type to verify
+     * @param vertexIds: the vertices to verify, numbers or strings, or null for every vertex
+     * @param repair: missing entries are added if this is set to true
+     * @throws RepairException
+     */
+    public void verifyTypeEntries(TitanType type, Iterator<?> vertexIds, boolean repair) throws RepairException {
+        if (!type.isPropertyKey()) {
+            throw new RepairException("the type [" + type.getName() + "] is not a property key");
+        }
+        TitanKey titanKey = (TitanKey) type;
+        if (!titanKey.hasIndex()) {
+            throw new RepairException("the key [" + type.getName() + "] is not an index");
+        }
+        Iterator<ByteBuffer> rowKeys = vertexIds == null ? null : vertexRowKeys(vertexIds);
+
+        //begin graph and store transactions
+        InternalTitanTransaction itx = (InternalTitanTransaction) graph.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+
+        //vertices are stored in the edge store
+        KeyColumnValueStore edgeStore = getBackend().getEdgeStore();
+
+        String job = (repair ? "repairTypeEntries " : "checkTypeEntries ") + type.getName();
+        ShardFilter shard = rowKeys == null ? vertexShard(null) : null;
+        if (shard != null) job += " " + shard;
+        Watermark watermark = rowKeys == null ? openWatermark(job) : null;
+        if (rowKeys != null) job += " targeted";
+        else if (watermark != null) job += " incremental";
+        ParallelScanner scanner = new ParallelScanner(
+                this, job, "vertices inspected", IndexVerifyWorker.COUNTER_NAMES, rowKeys == null
+        );
+        scanner.addKeyFilter(shard);
+        scanner.addKeyFilter(watermark);
+
+        ExecutorService lookupPool = newLookupPool();
+        IndexEntryLookup lookup = new IndexEntryLookup(getBackend().getVertexIndexStore(), lookupPool, lookupThreads, backpressure);
+        if (lookupPool != null) scanner.setHelperThreads(scanThreads * lookupThreads);
+
+        List<IndexVerifyWorker> workers = new ArrayList<IndexVerifyWorker>(scanThreads);
+        for (int i=0; i<scanThreads; i++) {
+            workers.add(new IndexVerifyWorker(this, graph, titanKey, repair, lookup, lookupBatchSize,
+                    readTxSize, repairBatchSize, repairBatchBytes));
+        }
+        try {
+            if (rowKeys != null) {
+                scanner.scan(rowKeys, workers);
+            } else {
+                scanner.scan(edgeStore, stx, workers);
+            }
+        } finally {
+            if (lookupPool != null) lookupPool.shutdownNow();
+            itx.commit();
+        }
+
+        if (watermark != null) watermark.save();
+
+        long[] counters = scanner.getCounters();
+        System.out.println("");
+        System.out.println("[" + type.getName() + "] entry " + (repair?"repair":"check") + " completed");
+        System.out.println("  > " + scanner.getCompletedCount() + " keys examined");
+        if (watermark != null) System.out.println("  > " + watermark.getSkippedCount() + " keys below the watermark skipped");
+        System.out.println("  > " + counters[IndexVerifyWorker.MISSING_ENTRIES] + " missing index entries " + (repair?"added":"detected"));
+        System.out.println("  > " + counters[IndexVerifyWorker.CONFLICTING_ENTRIES] + " values indexed to other vertices detected");
+    }
+
+    /**
+     * Checks the indexes of the given types against the vertices in both
+     * directions, finding entries for deleted vertices or wrong values as
+     * checkTypes does, and values missing from the index as checkTypeEntries
+     * does. Instead of looking up every entry and value, the index and the
+     * vertices are each read once, sequentially, and what they hold is sorted
+     * on disk and merged, which scales to graphs too big for point lookups.
+     *
+     * Nothing is repaired, set a report file and run applyReport on it to
+     * repair what's found.
+     *
+     * @param types: the types to check
+     * @throws RepairException
+     */
+    public void checkTypesByJoin(Collection<? extends TitanType> types) throws RepairException {
+        if (types.isEmpty()) {
+            throw new RepairException("no types were given");
+        }
+        List<TitanKey> titanKeys = new ArrayList<TitanKey>(types.size());
+        for (TitanType type: types) {
+            if (!type.isPropertyKey()) {
+                throw new RepairException("the type [" + type.getName() + "] is not a property key");
+            }
+            TitanKey titanKey = (TitanKey) type;
+            if (!titanKey.hasIndex()) {
+                throw new RepairException("the key [" + type.getName() + "] is not an index");
+            }
+            if (type.getName().startsWith("#")) {
+                throw new RepairException("the system key [" + type.getName() + "] can't be joined, use checkTypeIndex");
+            }
+            titanKeys.add(titanKey);
+        }
+        if (shardCount > 1 || partitions != null) {
+            //index rows and vertices can't be split the same way, so a shard would only see half of most pairs
+            throw new RepairException("the join check can't be sharded, or restricted to partitions");
+        }
+        new IndexJoin(this, graph, titanKeys, new File(spillDirectory), spillBytes).run();
+    }
+
+    /**
+     * Checks the indexes of the given types against the vertices in both
+     * directions, see checkTypesByJoin
+     *
+     * @param typeNames
+     * @throws RepairException
+     */
+    public void checkTypesByJoin(String... typeNames) throws RepairException {
+        checkTypesByJoin(getTypes(typeNames));
+    }
+
+    /**
+     * Detects vertex properties of the given type that are missing from its
+     * index, see verifyTypeEntries
+     *
+     * @param typeName
+     * @throws RepairException
+     */
+    public void checkTypeEntries(String typeName) throws RepairException {
+        verifyTypeEntries(getTypes(typeName).get(0), null, false);
+    }
+
+    /**
+     * Adds the index entries missing for vertex properties of the given type,
+     * see verifyTypeEntries
+     *
+     * @param typeName
+     * @throws RepairException
+     */
+    public void repairTypeEntries(String typeName) throws RepairException {
+        verifyTypeEntries(getTypes(typeName).get(0), null, true);
+    }
+
     /**
      * Iterates through all vertices and updates the index with the current values
      *
@@ -479,6 +1408,17 @@ public class TitanGraphTools {
      * @param type
      */
     public void reindexType(TitanType type) throws RepairException {
+        reindexType(type, null);
+    }
+
+    /**
+     * Reindexes the given type in one range of a JobCoordinator job, see reindexType
+     *
+     * @param type
+     * @param range: the range to scan in place of the shard, or null
+     * @throws RepairException
+     */
+    void reindexType(TitanType type, JobRange range) throws RepairException {
         if (!type.isPropertyKey()) {
             throw new RepairException("the given type is not a property key");
         }
@@ -495,35 +1435,25 @@ public class TitanGraphTools {
         }
 
         //vertices are stored in the edge store
-        Backend backend = getBackend();
-        KeyColumnValueStore edgeStore = backend.getEdgeStore();
-
-        int count = 0;
+        KeyColumnValueStore edgeStore = getBackend().getEdgeStore();
+
+        ShardFilter shard = vertexShard(range);
+        ParallelScanner scanner = new ParallelScanner(
+                this, "reindexType " + titanKey.getName() + (shard != null ? " " + shard : ""),
+                "vertices reindexed", ReindexWorker.COUNTER_NAMES, range == null
+        );
+        scanner.addKeyFilter(shard);
+        scanner.setJobRange(range);
         try {
-            //@todo: fix this so the mutator and transaction are instantiated and committed once per fix
-            InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
-            BackendMutator mutator = new BackendMutator(backend, tx.getTxHandle());
-            RecordIterator<ByteBuffer> keys = edgeStore.getKeys(stx);
-            while (keys.hasNext()) {
-                ByteBuffer key = keys.next();
-                long eid = IDHandler.getKeyID(key);
-                TitanVertex v = tx.getVertex(eid);
-                Iterator<TitanProperty> properties = v.getProperties(titanKey.getName()).iterator();
-                while (properties.hasNext()) {
-                    addIndexEntry(properties.next(), mutator);
-                    count++;
-                }
-                if (count % 1000 == 0)
-                    System.out.println(count + " properties reindexed on type: [" + type.getName() + "]");
-            }
-            tx.commit();
-        } catch (StorageException e) {
-            throw new RepairException(e);
+            scanner.scan(edgeStore, stx, Collections.singletonList(
+                    new ReindexWorker(this, graph, titanKey, reindexBatchSize, reindexBatchBytes)
+            ));
+        } finally {
+            itx.commit();
         }
-        itx.commit();
 
         System.out.println("");
-        System.out.println(count + " properties reindexed on type: [" + type.getName() + "]");
+        System.out.println(scanner.getCounters()[ReindexWorker.PROPERTIES_REINDEXED] + " properties reindexed on type: [" + type.getName() + "]");
     }
 
     /**
@@ -575,102 +1505,90 @@ public class TitanGraphTools {
 
     /**
      * Iterates over all vertices in the graph and removes ones that
-     * are partially deleted
+     * are partially deleted. The vertices are checked on setScanThreads
+     * threads, each reading through its own short lived transactions.
      *
      * @param repair
      */
     public void cleanVertices(boolean repair) throws RepairException {
+        cleanVertices(repair, null);
+    }
+
+    /**
+     * Checks the given vertices only, and removes the ones that are
+     * partially deleted, rather than iterating over all vertices. Runs given
+     * vertices aren't checkpointed.
+     *
+     * @param repair
+     * @param vertexIds: the ids of the vertices to check, numbers or strings, or null for every vertex
+     */
+    public void cleanVertices(boolean repair, Iterator<?> vertexIds) throws RepairException {
+        cleanVertices(repair, vertexIds, null);
+    }
+
+    /**
+     * Checks the vertices of one range of a JobCoordinator job, see cleanVertices
+     *
+     * @param repair
+     * @param vertexIds
+     * @param range: the range to scan in place of the shard, or null
+     * @throws RepairException
+     */
+    void cleanVertices(boolean repair, Iterator<?> vertexIds, JobRange range) throws RepairException {
+        Iterator<ByteBuffer> rowKeys = vertexIds == null ? null : vertexRowKeys(vertexIds);
+
         //begin graph and store transactions
         InternalTitanTransaction itx = (InternalTitanTransaction) graph.newTransaction();
         StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
 
         //vertices are stored in the edge store
-        Backend backend = getBackend();
-        KeyColumnValueStore edgeStore = backend.getEdgeStore();
-        Set<Long> removedIndexEntries = new HashSet<Long>();
+        KeyColumnValueStore edgeStore = getBackend().getEdgeStore();
+
+        //a graph has few types, but every column refers to one
+        TypeIdCache typeIds = new TypeIdCache(this, TYPE_ID_CACHE_SIZE);
+
+        String job = repair ? "cleanVertices" : "checkVertices";
+        ShardFilter shard = rowKeys == null ? vertexShard(range) : null;
+        if (shard != null) job += " " + shard;
+        //a range of a job must see every vertex in it, whatever an earlier run saw
+        Watermark watermark = rowKeys == null && range == null ? openWatermark(job) : null;
+        if (rowKeys != null) job += " targeted";
+        else if (watermark != null) job += " incremental";
+        ParallelScanner scanner = new ParallelScanner(
+                this, job, "vertices inspected", VertexCleanWorker.COUNTER_NAMES, rowKeys == null && range == null
+        );
+        scanner.addKeyFilter(shard);
+        scanner.addKeyFilter(watermark);
+        scanner.setJobRange(range);
+
+        List<VertexCleanWorker> workers = new ArrayList<VertexCleanWorker>(scanThreads);
+        for (int i=0; i<scanThreads; i++) {
+            workers.add(new VertexCleanWorker(this, graph, repair, readTxSize, typeIds));
+        }
+        try {
+            if (rowKeys != null) {
+                scanner.scan(rowKeys, workers);
+            } else {
+                scanner.scan(edgeStore, stx, workers);
+            }
+        } finally {
+            itx.commit();
+        }
+
+        if (watermark != null) watermark.save();
 
         Double minCreated = Double.MAX_VALUE;
         Double maxCreated = Double.MIN_VALUE;
-
-        int keyCount = 0;
-        int fixCount = 0;
-        try {
-            InternalTitanTransaction readOnlyTx = (InternalTitanTransaction) graph.newTransaction();
-            RecordIterator<ByteBuffer> keys = edgeStore.getKeys(stx);
-            while (keys.hasNext()) {
-                ByteBuffer key = keys.next();
-                long eid = IDHandler.getKeyID(key);
-                TitanVertex v = readOnlyTx.getVertex(eid);
-
-                //don't mess with system stuff
-                if (v instanceof TitanKey) continue;
-                if (v instanceof TitanLabel) continue;
-                if (v instanceof TitanType) continue;
-
-                Object state = getSystemPropertyValue(v, SystemKey.VertexState);
-
-                if (state == null) {
-                    if (repair) {
-                        InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
-                        tx.removeVertex(tx.getVertex(v.getID()));
-                        tx.commit();
-                    }
-                    System.out.println("invalid vertex found: v[" + v.getID() + "]");
-                    fixCount++;
-                } else {
-                    //
-                    SimpleTitanQuery sq = new SimpleTitanQuery((InternalTitanVertex) v);
-                    List<Entry> entries = queryForEntries(sq.clone(), stx);
-                    List<ByteBuffer> deletions = new LinkedList<ByteBuffer>();
-                    List<Long> idxDeletions = new LinkedList<Long>();
-                    for (Entry entry: entries) {
-                        ByteBuffer column = entry.getColumn();
-                        int pos = column.position();
-//                        int dirID = IDHandler.getDirectionID(column.get(column.position()));
-                        long etid = IDHandler.readEdgeType(column, getIdManager());
-                        TitanType titanType = getTypeFromID(etid, readOnlyTx);
-                        if (titanType == null) {
-                            column.position(pos);
-                            deletions.add(entry.getColumn());
-                            idxDeletions.add(etid);
-                        }
-                    }
-
-                    if (deletions.size() > 0) {
-                        if (repair) {
-                            InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
-                            StoreTransaction storeTx = ((BackendTransaction) tx.getTxHandle()).getStoreTransactionHandle();
-                            getBackend().getEdgeStore().mutate(IDHandler.getKey(v.getID()), null, deletions, storeTx);
-                            stx.commit();
-                            tx.commit();
-                        }
-                        System.out.print("corrupt vertex property found: v[" + v.getID() + "] -> ");
-                        for (Long l: idxDeletions) System.out.print(" " + l);
-                        System.out.print("\n");
-
-                        try {
-                            Double created_at = (Double) v.getProperty("created_at");
-                            if (created_at < minCreated) minCreated = created_at;
-                            if (created_at > maxCreated) maxCreated = created_at;
-                        } catch (Exception e) {
-                            //
-                        }
-                        fixCount++;
-                    }
-                }
-                keyCount++;
-                if (keyCount % 1000 == 0)
-                    System.out.println(keyCount + " vertices inspected");
-            }
-        } catch (StorageException e) {
-            throw new RepairException(e);
+        for (VertexCleanWorker worker: workers) {
+            if (worker.minCreated < minCreated) minCreated = worker.minCreated;
+            if (worker.maxCreated > maxCreated) maxCreated = worker.maxCreated;
         }
-        itx.commit();
 
         System.out.println("");
         System.out.println("partial vertex " + (repair?"repair":"check") + " completed");
-        System.out.println("  > " + keyCount + " keys examined");
-        System.out.println("  > " + fixCount + " partial vertices " + (repair?"removed":"detected"));
+        System.out.println("  > " + scanner.getCompletedCount() + " keys examined");
+        if (watermark != null) System.out.println("  > " + watermark.getSkippedCount() + " keys below the watermark skipped");
+        System.out.println("  > " + scanner.getCounters()[VertexCleanWorker.PARTIAL_VERTICES] + " partial vertices " + (repair?"removed":"detected"));
         System.out.println("  > min timestamp: " + minCreated);
         System.out.println("  > max timestamp: " + maxCreated);
 
@@ -683,4 +1601,12 @@ public class TitanGraphTools {
     public void checkVertices() throws RepairException {
         cleanVertices(false);
     }
+
+    public void cleanVertices(Iterator<?> vertexIds) throws RepairException {
+        cleanVertices(true, vertexIds);
+    }
+
+    public void checkVertices(Iterator<?> vertexIds) throws RepairException {
+        cleanVertices(false, vertexIds);
+    }
 }
@@ -0,0 +1,87 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers which type ids resolve to an existing type, and which don't,
+ * so the types of a scan's columns are only looked up once per run.
+ *
+ * Entries live in an open addressed table of primitive longs, claimed with
+ * compare and set, so workers share the cache without locking. Once the
+ * table is full, ids that aren't in it are simply looked up every time.
+ * Type ids are never reused, so caching that an id has no type is safe.
+ */
+class TypeIdCache {
+    private static final long EMPTY = 0;
+    private static final int UNKNOWN = 0;
+    private static final int VALID = 1;
+    private static final int INVALID = 2;
+
+    private final TitanGraphTools tools;
+    private final int mask;
+    private final AtomicLongArray ids;
+    private final AtomicIntegerArray states;
+
+    /**
+     * @param tools
+     * @param capacity: the number of type ids that can be cached, rounded up to a power of two
+     */
+    public TypeIdCache(TitanGraphTools tools, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.tools = tools;
+        this.mask = size - 1;
+        this.ids = new AtomicLongArray(size);
+        this.states = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * Returns true if the given id belongs to an existing type
+     *
+     * @param etid
+     * @param tx: the transaction the type is looked up with, if it isn't cached
+     * @return
+     * @throws RepairException
+     */
+    public boolean isValid(long etid, InternalTitanTransaction tx) throws RepairException {
+        int slot = find(etid);
+        if (slot >= 0) {
+            int state = states.get(slot);
+            if (state != UNKNOWN) return state == VALID;
+        }
+
+        boolean valid = tools.getTypeFromID(etid, tx) != null;
+        if (slot >= 0) states.set(slot, valid ? VALID : INVALID);
+        return valid;
+    }
+
+    /**
+     * Returns the slot holding the given id, claiming a free one if it isn't
+     * in the table yet, or -1 if the table is full
+     *
+     * @param etid
+     * @return
+     */
+    private int find(long etid) {
+        if (etid == EMPTY) return -1;
+        int slot = hash(etid) & mask;
+        for (int i=0; i<=mask; i++) {
+            long id = ids.get(slot);
+            if (id == etid) return slot;
+            if (id == EMPTY) {
+                if (ids.compareAndSet(slot, EMPTY, etid)) return slot;
+                //another worker claimed the slot first, maybe for the same id
+                if (ids.get(slot) == etid) return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,215 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanProperty;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Resolves a batch of vertex ids, and optionally the values each vertex
+ * holds for some property keys, with the lookups spread over a pool of threads.
+ *
+ * The titan store interface can only read one row per call, so this doesn't
+ * reduce the number of reads: every vertex is still loaded with its own
+ * getVertex, plus a read per requested property. What it does is split the
+ * ids collected from a window of index rows into chunks that are read
+ * concurrently, so the window waits on the slowest chunk rather than on the
+ * sum of every lookup.
+ */
+class VertexBatchLookup {
+    private final StandardTitanGraph graph;
+    private final ExecutorService pool;
+    private final int parallelism;
+    private final Backpressure backpressure;
+
+    /**
+     * @param graph
+     * @param pool: the threads to run the lookups on, lookups run on the calling thread if this is null
+     * @param parallelism: the number of chunks a batch is split into
+     * @param backpressure: limits the chunks looked up at once along with the rest of the scan
+     */
+    public VertexBatchLookup(StandardTitanGraph graph, ExecutorService pool, int parallelism, Backpressure backpressure) {
+        this.graph = graph;
+        this.pool = pool;
+        this.parallelism = pool == null ? 1 : parallelism;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Looks up the given vertex ids. The returned batch holds open
+     * transactions, and must be closed once the caller is done with it
+     *
+     * @param requests: maps the vertex ids to resolve to the property keys to load for them,
+     *                an empty collection only checks that the vertex exists
+     * @return
+     * @throws RepairException
+     */
+    public Batch lookup(Map<Long, ? extends Collection<TitanKey>> requests) throws RepairException {
+        Batch batch = new Batch();
+        if (requests.isEmpty()) return batch;
+
+        int chunkSize = (requests.size() + parallelism - 1) / parallelism;
+        List<List<Long>> chunks = new ArrayList<List<Long>>(parallelism);
+        List<Long> chunk = null;
+        for (Long id: requests.keySet()) {
+            if (chunk == null || chunk.size() == chunkSize) {
+                chunk = new ArrayList<Long>(chunkSize);
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+
+        if (pool == null) {
+            boolean done = false;
+            try {
+                for (List<Long> c: chunks) new ChunkLookup(c, requests, batch).call();
+                done = true;
+            } finally {
+                //the transactions of the chunks looked up before the failure
+                if (!done) batch.close();
+            }
+            return batch;
+        }
+
+        List<Future<Batch>> futures = new ArrayList<Future<Batch>>(chunks.size());
+        for (List<Long> c: chunks) {
+            futures.add(pool.submit(new ChunkLookup(c, requests, new Batch())));
+        }
+
+        RepairException failure = null;
+        for (Future<Batch> future: futures) {
+            try {
+                batch.add(backpressure.await(future));
+            } catch (RepairException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) {
+            batch.close();
+            throw failure;
+        }
+        return batch;
+    }
+
+    private class ChunkLookup implements Callable<Batch> {
+        private final List<Long> ids;
+        private final Map<Long, ? extends Collection<TitanKey>> requests;
+        private final Batch batch;
+
+        ChunkLookup(List<Long> ids, Map<Long, ? extends Collection<TitanKey>> requests, Batch batch) {
+            this.ids = ids;
+            this.requests = requests;
+            this.batch = batch;
+        }
+
+        public Batch call() throws RepairException {
+            backpressure.enter();
+            try {
+                InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
+                boolean done = false;
+                try {
+                    for (Long id: ids) {
+                        TitanVertex v = tx.getVertex(id);
+                        if (v == null) continue;
+                        batch.existing.add(id);
+                        for (TitanKey key: requests.get(id)) {
+                            Iterator<TitanProperty> properties = v.getProperties(key.getName()).iterator();
+                            if (properties.hasNext()) batch.properties.put(new PropertyRef(id, key.getID()), properties.next());
+                        }
+                    }
+                    done = true;
+                } finally {
+                    //a failed chunk's batch is dropped, so nothing else would close its transaction
+                    if (!done) tx.abort();
+                }
+                batch.transactions.add(tx);
+                return batch;
+            } finally {
+                backpressure.exit();
+            }
+        }
+    }
+
+    /**
+     * Identifies the value of a property key on a vertex
+     */
+    private static class PropertyRef {
+        final long vertexId;
+        final long keyId;
+
+        PropertyRef(long vertexId, long keyId) {
+            this.vertexId = vertexId;
+            this.keyId = keyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PropertyRef)) return false;
+            PropertyRef other = (PropertyRef) o;
+            return vertexId == other.vertexId && keyId == other.keyId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (vertexId ^ (vertexId >>> 32)) * 31 + (int) (keyId ^ (keyId >>> 32));
+        }
+    }
+
+    /**
+     * The result of a lookup
+     */
+    static class Batch {
+        private final LongSet existing = new LongSet();
+        private final Map<PropertyRef, TitanProperty> properties = new HashMap<PropertyRef, TitanProperty>();
+        private final List<InternalTitanTransaction> transactions = new ArrayList<InternalTitanTransaction>();
+
+        /**
+         * Returns true if the vertex with the given id exists
+         *
+         * @param id
+         * @return
+         */
+        public boolean exists(long id) {
+            return existing.contains(id);
+        }
+
+        /**
+         * Returns the property loaded for the given vertex and key, or null if
+         * the vertex doesn't exist or doesn't have the property
+         *
+         * @param id
+         * @param key
+         * @return
+         */
+        public TitanProperty getProperty(long id, TitanKey key) {
+            return properties.get(new PropertyRef(id, key.getID()));
+        }
+
+        /**
+         * Closes the transactions the lookups were made with
+         */
+        public void close() {
+            for (InternalTitanTransaction tx: transactions) {
+                if (tx.isOpen()) tx.commit();
+            }
+            transactions.clear();
+        }
+
+        private void add(Batch other) {
+            existing.addAll(other.existing);
+            properties.putAll(other.properties);
+            transactions.addAll(other.transactions);
+        }
+    }
+}
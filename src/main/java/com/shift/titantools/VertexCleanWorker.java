@@ -0,0 +1,187 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.core.TitanKey;
+import com.thinkaurelius.titan.core.TitanLabel;
+import com.thinkaurelius.titan.core.TitanType;
+import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.diskstorage.BackendTransaction;
+import com.thinkaurelius.titan.diskstorage.StorageException;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.Entry;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.KeyColumnValueStore;
+import com.thinkaurelius.titan.diskstorage.keycolumnvalue.StoreTransaction;
+import com.thinkaurelius.titan.graphdb.database.StandardTitanGraph;
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
+import com.thinkaurelius.titan.graphdb.query.SimpleTitanQuery;
+import com.thinkaurelius.titan.graphdb.transaction.InternalTitanTransaction;
+import com.thinkaurelius.titan.graphdb.types.system.SystemKey;
+import com.thinkaurelius.titan.graphdb.vertices.InternalTitanVertex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds, and optionally removes, partially deleted vertices and vertex
+ * relations whose type no longer exists, for the edge store rows handed
+ * to it by a ParallelScanner. Vertices are read through a transaction
+ * that's replaced every readTxSize vertices, so its vertex cache stays
+ * small however many vertices the worker sees.
+ */
+class VertexCleanWorker extends ScanWorker {
+    static final int PARTIAL_VERTICES = 0;
+    static final int COUNTER_COUNT = 1;
+    static final String[] COUNTER_NAMES = { "partialVertices" };
+
+    private final TitanGraphTools tools;
+    private final StandardTitanGraph graph;
+    private final KeyColumnValueStore edgeStore;
+    private final IDManager idManager;
+    private final boolean repair;
+    private final int readTxSize;
+    private final TypeIdCache typeIds;
+    private final Throttle throttle;
+    private final Backpressure backpressure;
+
+    private InternalTitanTransaction readOnlyTx;
+    private StoreTransaction stx;
+    private int readTxVertices = 0;
+
+    Double minCreated = Double.MAX_VALUE;
+    Double maxCreated = Double.MIN_VALUE;
+
+    /**
+     * @param tools
+     * @param graph
+     * @param repair: partial vertices are removed if this is set to true
+     * @param readTxSize: the number of vertices read per transaction
+     * @param typeIds: resolves the type ids of the vertices' columns, shared by all workers
+     * @throws RepairException
+     */
+    public VertexCleanWorker(TitanGraphTools tools, StandardTitanGraph graph, boolean repair, int readTxSize,
+                             TypeIdCache typeIds) throws RepairException {
+        this.tools = tools;
+        this.graph = graph;
+        this.edgeStore = tools.getBackend().getEdgeStore();
+        this.idManager = tools.getIdManager();
+        this.repair = repair;
+        this.readTxSize = readTxSize;
+        this.typeIds = typeIds;
+        this.throttle = tools.getThrottle();
+        this.backpressure = tools.getBackpressure();
+        beginRead();
+    }
+
+    private void beginRead() {
+        readOnlyTx = (InternalTitanTransaction) graph.newTransaction();
+        stx = ((BackendTransaction) readOnlyTx.getTxHandle()).getStoreTransactionHandle();
+        readTxVertices = 0;
+    }
+
+    @Override
+    public void processKey(long seq, ByteBuffer key) throws RepairException {
+        if (readTxVertices++ >= readTxSize) {
+            readOnlyTx.commit();
+            beginRead();
+        }
+        long start = System.nanoTime();
+        boolean partial = checkVertex(key);
+        timed("vertex", start);
+        completed(seq, key, partial ? fixCount() : null, partial && repair);
+    }
+
+    private static long[] fixCount() {
+        long[] counts = new long[COUNTER_COUNT];
+        counts[PARTIAL_VERTICES] = 1;
+        return counts;
+    }
+
+    /**
+     * Checks the vertex stored under the given key
+     *
+     * @param key
+     * @return true if the vertex is partially deleted
+     * @throws RepairException
+     */
+    private boolean checkVertex(ByteBuffer key) throws RepairException {
+        long eid = IDHandler.getKeyID(key);
+        TitanVertex v = readOnlyTx.getVertex(eid);
+
+        //targeted checks can be given ids of vertices that are long gone
+        if (v == null) return false;
+
+        //don't mess with system stuff
+        if (v instanceof TitanKey) return false;
+        if (v instanceof TitanLabel) return false;
+        if (v instanceof TitanType) return false;
+
+        Object state = TitanGraphTools.getSystemPropertyValue(v, SystemKey.VertexState);
+
+        if (state == null) {
+            if (repair) {
+                throttle.mutations(1);
+                InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
+                tx.removeVertex(tx.getVertex(v.getID()));
+                tx.commit();
+            }
+            report(new Finding(Finding.PARTIAL_VERTEX, v.getID(), 0, null, key, null, null, repair));
+            return true;
+        }
+
+        SimpleTitanQuery sq = new SimpleTitanQuery((InternalTitanVertex) v);
+        List<Entry> entries = tools.queryForEntries(sq.clone(), stx);
+        throttle.entries(entries);
+        List<ByteBuffer> deletions = new ArrayList<ByteBuffer>();
+        LongList idxDeletions = new LongList();
+        for (Entry entry: entries) {
+            ByteBuffer column = entry.getColumn();
+            int pos = column.position();
+            long etid = IDHandler.readEdgeType(column, idManager);
+            if (!typeIds.isValid(etid, readOnlyTx)) {
+                column.position(pos);
+                deletions.add(entry.getColumn());
+                idxDeletions.add(etid);
+            }
+        }
+
+        if (deletions.size() == 0) return false;
+
+        if (repair) {
+            throttle.mutations(deletions.size());
+            InternalTitanTransaction tx = (InternalTitanTransaction) graph.newTransaction();
+            final StoreTransaction storeTx = ((BackendTransaction) tx.getTxHandle()).getStoreTransactionHandle();
+            final ByteBuffer vertexKey = IDHandler.getKey(v.getID());
+            final List<ByteBuffer> columns = deletions;
+            backpressure.call(new Backpressure.StoreCall<Void>() {
+                public Void call() throws StorageException {
+                    edgeStore.mutate(vertexKey, null, columns, storeTx);
+                    return null;
+                }
+            });
+            tx.commit();
+        }
+        //one finding per column, so a report can be applied column by column
+        for (int i=0; i<deletions.size(); i++) {
+            report(new Finding(Finding.CORRUPT_RELATIONS, v.getID(), idxDeletions.get(i), null, key, deletions.get(i), null, repair));
+        }
+
+        try {
+            Double created_at = (Double) v.getProperty("created_at");
+            if (created_at < minCreated) minCreated = created_at;
+            if (created_at > maxCreated) maxCreated = created_at;
+        } catch (Exception e) {
+            //
+        }
+        return true;
+    }
+
+    @Override
+    public void finish() throws RepairException {
+        readOnlyTx.commit();
+    }
+
+    @Override
+    public void abort() {
+        readOnlyTx.abort();
+    }
+}
@@ -0,0 +1,177 @@
+package com.shift.titantools;
+
+import com.thinkaurelius.titan.graphdb.database.idhandling.IDHandler;
+import com.thinkaurelius.titan.graphdb.idmanagement.IDManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Records, in a local file, the highest vertex id a vertex scan has seen in
+ * every id partition, so the next run of the same scan only processes the
+ * vertices added since.
+ *
+ * Titan hands out the ids of a partition in increasing order, so within a
+ * partition a higher id is a newer vertex, and the watermark works as a
+ * creation time that can be read off the row key, without reading the row.
+ * Types are stored in the same rows as vertices, but are counted separately,
+ * so ids are also grouped by their lowest bits, which tell them apart.
+ * Ids are claimed in blocks though, and an instance that held on to a block
+ * from before the last run can still add vertices below the watermark, so
+ * a full scan should be run from time to time.
+ *
+ * As a KeyFilter it accepts the keys above the watermark the scan started
+ * with, and keeps track of the highest ids it sees. They are only written
+ * out by save, once the scan has completed. Being a filter, it doesn't
+ * save the reading of the keys themselves: the store can only list all of
+ * its keys, so the scan still reads every one, and only the work done per
+ * row is skipped for the older ones.
+ */
+class Watermark implements KeyFilter {
+    //the lowest bits of an id tell vertices, and the kinds of types, apart
+    private static final int TAG_BITS = 3;
+
+    private final File file;
+    private final String job;
+    private final IDManager idManager;
+
+    //the highest ids of the last run, and of this one, by partition and tag
+    private final Map<Long, Long> previous = new HashMap<Long, Long>();
+    private final Map<Long, Long> current = new HashMap<Long, Long>();
+    private long skipped = 0;
+
+    private Watermark(File file, String job, IDManager idManager) {
+        this.file = file;
+        this.job = job;
+        this.idManager = idManager;
+    }
+
+    /**
+     * Opens the watermark file at the given path, loading the ids it records
+     * if it exists
+     *
+     * @param path: the watermark file
+     * @param job: describes the scan, a watermark written by a different job is rejected
+     * @param idManager: reads the partitions of vertex ids
+     * @return
+     * @throws RepairException if the file can't be read or belongs to a different job
+     */
+    public static Watermark open(String path, String job, IDManager idManager) throws RepairException {
+        Watermark watermark = new Watermark(new File(path), job, idManager);
+        if (watermark.file.exists()) watermark.load();
+        return watermark;
+    }
+
+    private void load() throws RepairException {
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("unable to read watermark " + file, e);
+        }
+
+        if (!job.equals(props.getProperty("job"))) {
+            throw new RepairException(
+                    "watermark " + file + " was written by [" + props.getProperty("job") + "], not [" + job + "]"
+            );
+        }
+
+        try {
+            for (String name: props.stringPropertyNames()) {
+                if (!name.startsWith("partition.")) continue;
+                String[] group = name.substring("partition.".length()).split("\\.");
+                long partition = Long.parseLong(group[0]);
+                long tag = Long.parseLong(group[1]);
+                previous.put((partition << TAG_BITS) | tag, Long.parseLong(props.getProperty(name)));
+            }
+        } catch (RuntimeException e) {
+            throw new RepairException("watermark " + file + " is corrupt", e);
+        }
+        current.putAll(previous);
+    }
+
+    /**
+     * Returns true if the watermark was loaded from an earlier run
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return !previous.isEmpty();
+    }
+
+    public boolean accept(ByteBuffer key) {
+        long id = IDHandler.getKeyID(key.duplicate());
+        long group = (idManager.getPartitionID(id) << TAG_BITS) | (id & ((1 << TAG_BITS) - 1));
+        Long highest = current.get(group);
+        if (highest == null || id > highest) current.put(group, id);
+
+        Long mark = previous.get(group);
+        if (mark != null && id <= mark) {
+            skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of keys at or below the watermark, which were skipped
+     *
+     * @return
+     */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Writes the highest ids seen to a temporary file, syncs it, and moves
+     * it over the watermark, so a crash never leaves a partial watermark
+     *
+     * @throws RepairException
+     */
+    public void save() throws RepairException {
+        Properties props = new Properties();
+        props.setProperty("job", job);
+        for (Map.Entry<Long, Long> mark: current.entrySet()) {
+            long partition = mark.getKey() >>> TAG_BITS;
+            long tag = mark.getKey() & ((1 << TAG_BITS) - 1);
+            props.setProperty("partition." + partition + "." + tag, Long.toString(mark.getValue()));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RepairException("unable to write watermark " + file, e);
+        }
+        if (!tmp.renameTo(file)) {
+            //renameTo won't replace an existing file on some platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new RepairException("unable to replace watermark " + file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
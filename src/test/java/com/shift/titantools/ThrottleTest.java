@@ -0,0 +1,132 @@
+package com.shift.titantools;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the throttle's token buckets against a fake clock, so the waits
+ * they ask for can be checked exactly, whatever the load on the machine
+ */
+public class ThrottleTest {
+
+    /**
+     * A clock that only moves when told to, or when slept on
+     */
+    private static class FakeTicker implements Throttle.Ticker {
+        long now = 0;
+        long slept = 0;
+
+        public long nanoTime() {
+            return now;
+        }
+
+        public void sleep(long nanos) {
+            now += nanos;
+            slept += nanos;
+        }
+
+        void advanceMillis(long millis) {
+            now += millis * 1000000L;
+        }
+
+        long sleptMillis() {
+            return Math.round(slept / 1e6);
+        }
+    }
+
+    /**
+     * Tests that nothing waits without a limit
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUnlimited() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        Throttle throttle = new Throttle(ticker);
+        for (int i=0; i<1000; i++) {
+            throttle.rows(1);
+            throttle.bytes(1024);
+            throttle.mutations(10);
+        }
+        Assert.assertEquals(0, ticker.slept);
+    }
+
+    /**
+     * Tests that rows taken one at a time are paced at the limit
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSteadyRate() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        Throttle throttle = new Throttle(ticker);
+        throttle.setMaxRowsPerSecond(50);
+        for (int i=0; i<100; i++) {
+            throttle.rows(1);
+        }
+        //100 rows at 50 a second
+        Assert.assertEquals(2000, ticker.sleptMillis());
+    }
+
+    /**
+     * Tests that an idle bucket refills, but never beyond a second's worth of permits
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRefillIsCapped() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        Throttle throttle = new Throttle(ticker);
+        throttle.setMaxRowsPerSecond(50);
+        ticker.advanceMillis(10000);
+
+        throttle.rows(50);
+        Assert.assertEquals(0, ticker.slept);
+
+        throttle.rows(1);
+        Assert.assertEquals(20, ticker.sleptMillis());
+    }
+
+    /**
+     * Tests that a request larger than the bucket is granted at once, and
+     * the caller waits for the whole debt to be paid
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLargeRequest() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        Throttle throttle = new Throttle(ticker);
+        throttle.setMaxBytesPerSecond(1000);
+        throttle.bytes(3000);
+        Assert.assertEquals(3000, ticker.sleptMillis());
+
+        //the debt is paid, so the next second's worth is on time again
+        ticker.advanceMillis(1000);
+        throttle.bytes(1000);
+        Assert.assertEquals(3000, ticker.sleptMillis());
+    }
+
+    /**
+     * Tests that lowering a limit drops the permits saved up at the old one,
+     * and that removing it stops the waits
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRateChange() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        Throttle throttle = new Throttle(ticker);
+        throttle.setMaxMutationsPerSecond(1000);
+        ticker.advanceMillis(1000);
+
+        throttle.setMaxMutationsPerSecond(10);
+        throttle.mutations(20);
+        //10 saved permits, then a second for the other 10
+        Assert.assertEquals(1000, ticker.sleptMillis());
+
+        throttle.setMaxMutationsPerSecond(0);
+        throttle.mutations(1000000);
+        Assert.assertEquals(1000, ticker.sleptMillis());
+    }
+}
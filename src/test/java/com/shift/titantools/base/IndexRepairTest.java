@@ -1,6 +1,12 @@
 package com.shift.titantools.base;
 
 import com.google.common.collect.Lists;
+import com.shift.titantools.IndexEstimate;
+import com.shift.titantools.JobCoordinator;
+import com.shift.titantools.RepairException;
+import com.shift.titantools.ScanListener;
+import com.shift.titantools.ScanListenerAdapter;
+import com.shift.titantools.ScanMetrics;
 import com.shift.titantools.TitanGraphTools;
 import com.thinkaurelius.titan.core.*;
 import com.thinkaurelius.titan.diskstorage.Backend;
@@ -20,10 +26,20 @@ import junit.framework.Assert;
 import org.apache.commons.configuration.Configuration;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 public abstract class IndexRepairTest extends GraphTest {
 
@@ -36,6 +52,70 @@ public abstract class IndexRepairTest extends GraphTest {
         return t.dataType(type).group(TypeGroup.DEFAULT_GROUP).makePropertyKey();
     }
 
+    /**
+     * Adds a vertex for each of the values prefix-0 to prefix-(count - 1) of
+     * the given key, in the open transaction
+     */
+    private void addVertices(TitanKey key, String prefix, int count) {
+        for (int i=0; i<count; i++) {
+            tx.addVertex().addProperty(key, prefix + "-" + i);
+        }
+    }
+
+    /**
+     * Writes index entries for the values fake-0 to fake-(count - 1) of the
+     * given key, each in its own row and pointing to a vertex that doesn't
+     * exist, then reopens the graph
+     */
+    private void addFakeIndexEntries(TitanKey key, int count) throws Exception {
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        KeyColumnValueStore indexStore = fx.getBackend().getVertexIndexStore();
+        InternalTitanTransaction itx = (InternalTitanTransaction) graphdb.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+        for (int i=0; i<count; i++) {
+            ByteBuffer column = key.isUnique() ? fx.getKeyedIndexColumn(key) : fx.getIndexColumn(key, 9999 + i);
+            List<Entry> additions = new ArrayList<Entry>(1);
+            additions.add(new Entry(column, VariableLong.positiveByteBuffer(5678 + i)));
+            indexStore.mutate(fx.getIndexKey("fake-" + i), additions, null, stx);
+        }
+        itx.commit();
+        clopen();
+    }
+
+    /**
+     * Deletes the index entries of the given key for each of the given
+     * values, then reopens the graph
+     */
+    private void removeIndexEntries(TitanKey key, String... values) throws Exception {
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        KeyColumnValueStore indexStore = fx.getBackend().getVertexIndexStore();
+        InternalTitanTransaction itx = (InternalTitanTransaction) graphdb.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+        ByteBuffer startColumn = VariableLong.positiveByteBuffer(key.getID());
+        for (String value: values) {
+            List<Entry> entries = indexStore.getSlice(
+                    fx.getIndexKey(value), startColumn.duplicate(), ByteBufferUtil.nextBiggerBuffer(startColumn), stx
+            );
+            List<ByteBuffer> toDelete = new ArrayList<ByteBuffer>(entries.size());
+            for (Entry entry: entries) toDelete.add(entry.getColumn());
+            indexStore.mutate(fx.getIndexKey(value), null, toDelete, stx);
+        }
+        itx.commit();
+        clopen();
+    }
+
+    /**
+     * Returns the number of vertices the index of the given key holds for the given value
+     */
+    private int indexed(TitanKey key, Object value) {
+        InternalTitanTransaction itx = (InternalTitanTransaction) graphdb.newTransaction();
+        try {
+            return ((StandardTitanGraph) graphdb).indexRetrieval(value, key, itx).length;
+        } finally {
+            itx.commit();
+        }
+    }
+
     @Test
     public void testUniqueIndexRepair() throws Exception {
         TitanKey id = makeType("vid", String.class, true, true);
@@ -99,6 +179,615 @@ public abstract class IndexRepairTest extends GraphTest {
         Assert.assertEquals(0, matches.length);
     }
 
+    /**
+     * Tests that index entries pointing to deleted vertices are removed when
+     * the index rows are spread across several scan threads
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testParallelIndexRepair() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+        int numVertices = 100;
+        addVertices(id, "id", numVertices);
+        int numFakes = 20;
+        addFakeIndexEntries(id, numFakes);
+
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setScanThreads(4);
+        fx.setScanQueueSize(8);
+        fx.setReadAhead(3);
+        fx.setLookupBatchSize(7);
+        fx.setRepairBatchSize(3);
+        fx.repairType(id);
+
+        clopen();
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(0, indexed(id, "fake-" + i));
+        }
+        for (int i=0; i<numVertices; i++) {
+            Assert.assertEquals(1, indexed(id, "id-" + i));
+        }
+    }
+
+    /**
+     * Tests that the indexes of several keys are repaired with a single pass
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMultiTypeIndexRepair() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+        TitanKey name = makeType("name", String.class, true, false);
+
+        int numVertices = 10;
+        for (int i=0; i<numVertices; i++) {
+            TitanVertex v = tx.addVertex();
+            v.addProperty(id, "id-" + i);
+            v.addProperty(name, "name-" + i);
+        }
+
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        KeyColumnValueStore indexStore = fx.getBackend().getVertexIndexStore();
+
+        InternalTitanTransaction itx = (InternalTitanTransaction) graphdb.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+
+        //point both indexes at a vertex that doesn't exist, under the same index row
+        String fakeValue = "fake";
+        long fakeVertexId = 5678;
+        indexStore.mutate(
+                fx.getIndexKey(fakeValue),
+                Lists.newArrayList(
+                        new Entry(fx.getKeyedIndexColumn(id), VariableLong.positiveByteBuffer(fakeVertexId)),
+                        new Entry(fx.getIndexColumn(name, 1234), VariableLong.positiveByteBuffer(fakeVertexId))
+                ),
+                null,
+                stx
+        );
+        itx.commit();
+        clopen();
+
+        itx = (InternalTitanTransaction) graphdb.newTransaction();
+        Assert.assertEquals(1, ((StandardTitanGraph) graphdb).indexRetrieval(fakeValue, id, itx).length);
+        Assert.assertEquals(1, ((StandardTitanGraph) graphdb).indexRetrieval(fakeValue, name, itx).length);
+
+        fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.repairTypes("vid", "name");
+
+        clopen();
+        itx = (InternalTitanTransaction) graphdb.newTransaction();
+        Assert.assertEquals(0, ((StandardTitanGraph) graphdb).indexRetrieval(fakeValue, id, itx).length);
+        Assert.assertEquals(0, ((StandardTitanGraph) graphdb).indexRetrieval(fakeValue, name, itx).length);
+        for (int i=0; i<numVertices; i++) {
+            Assert.assertEquals(1, ((StandardTitanGraph) graphdb).indexRetrieval("id-" + i, id, itx).length);
+            Assert.assertEquals(1, ((StandardTitanGraph) graphdb).indexRetrieval("name-" + i, name, itx).length);
+        }
+    }
+
+    /**
+     * Tests that a throttled scan still visits every row. The pacing itself
+     * is tested against a fake clock in ThrottleTest.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testThrottledIndexCheck() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+        int numVertices = 20;
+        addVertices(id, "id", numVertices);
+        clopen();
+
+        final List<ScanMetrics> finished = new ArrayList<ScanMetrics>();
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setJmxEnabled(false);
+        fx.setMaxRowsPerSecond(50);
+        fx.addListener(new ScanListenerAdapter() {
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                Assert.assertNull(failure);
+                finished.add(metrics);
+            }
+        });
+        fx.checkType(id);
+
+        Assert.assertEquals(1, finished.size());
+        Assert.assertEquals(numVertices, finished.get(0).getCounter("vid.entries"));
+    }
+
+    /**
+     * Tests that the problems found by a check are written to the report file,
+     * and counted in the metrics handed to scan listeners
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testScanMetricsAndReport() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+        int numVertices = 10;
+        addVertices(id, "id", numVertices);
+        int numFakes = 3;
+        addFakeIndexEntries(id, numFakes);
+
+        File report = File.createTempFile("titan-tools", ".jsonl.gz");
+        report.delete();
+        final List<ScanMetrics> finished = new ArrayList<ScanMetrics>();
+
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setReportFile(report.getPath());
+        fx.setJmxEnabled(false);
+        fx.addListener(new ScanListenerAdapter() {
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                Assert.assertNull(failure);
+                finished.add(metrics);
+            }
+        });
+        fx.checkType(id);
+
+        Assert.assertEquals(1, finished.size());
+        ScanMetrics metrics = finished.get(0);
+        Assert.assertTrue(metrics.isFinished());
+        Assert.assertTrue(metrics.getRowsCompleted() >= numVertices + numFakes);
+        Assert.assertEquals(numFakes, metrics.getFindings());
+        Assert.assertEquals(numFakes, metrics.getCounter("vid.deletedVertices"));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(report))));
+        int lines = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Assert.assertTrue(line.startsWith("{\"kind\":\"deleted vertex\""));
+                Assert.assertTrue(line.contains("\"typeId\":" + id.getID()));
+                Assert.assertTrue(line.contains("\"repaired\":false"));
+                lines++;
+            }
+        } finally {
+            reader.close();
+            report.delete();
+        }
+        Assert.assertEquals(numFakes, lines);
+    }
+
+    /**
+     * Tests that a targeted repair only touches the rows it's given, and that
+     * a report written by a check can be applied without another full scan
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTargetedIndexRepair() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+        addVertices(id, "id", 10);
+        int numFakes = 4;
+        addFakeIndexEntries(id, numFakes);
+
+        //a targeted run neither resumes nor replaces a checkpoint
+        File checkpoint = File.createTempFile("titan-tools", ".checkpoint");
+        Properties props = new Properties();
+        props.setProperty("job", "repairTypes targeted vid");
+        props.setProperty("position", "1");
+        FileOutputStream out = new FileOutputStream(checkpoint);
+        props.store(out, null);
+        out.close();
+
+        //only the given rows are repaired, by value and by row key
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setCheckpointFile(checkpoint.getPath());
+        List<Object> rows = new ArrayList<Object>();
+        rows.add("fake-0");
+        rows.add(fx.getIndexKey("fake-1"));
+        fx.repairType("vid", rows.iterator());
+        Assert.assertTrue(checkpoint.exists());
+        checkpoint.delete();
+
+        clopen();
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(i < 2 ? 0 : 1, indexed(id, "fake-" + i));
+        }
+
+        //the rest are found by a check, and repaired from its report
+        File report = File.createTempFile("titan-tools", ".jsonl.gz");
+        report.delete();
+        try {
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setReportFile(report.getPath());
+            fx.checkType("vid");
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.applyReport(report.getPath());
+        } finally {
+            report.delete();
+        }
+
+        clopen();
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(0, indexed(id, "fake-" + i));
+        }
+    }
+
+    /**
+     * Tests that vertex properties missing from the index are found by
+     * checkTypeEntries and added back by repairTypeEntries
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMissingIndexEntryRepair() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+        clopen();
+
+        //delete the index entries of the first few vertices
+        int numMissing = 3;
+        removeIndexEntries(name, "name-0", "name-1", "name-2");
+
+        final List<ScanMetrics> finished = new ArrayList<ScanMetrics>();
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setScanThreads(2);
+        fx.setRepairBatchSize(2);
+        //windows of several vertices, read back in more than one chunk
+        fx.setLookupBatchSize(4);
+        fx.setLookupThreads(2);
+        fx.addListener(new ScanListenerAdapter() {
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                finished.add(metrics);
+            }
+        });
+        fx.checkTypeEntries("name");
+        fx.repairTypeEntries("name");
+        fx.checkTypeEntries("name");
+
+        Assert.assertEquals(3, finished.size());
+        Assert.assertEquals(numMissing, finished.get(0).getCounter("missingEntries"));
+        Assert.assertEquals(numMissing, finished.get(1).getCounter("missingEntries"));
+        Assert.assertEquals(0, finished.get(2).getCounter("missingEntries"));
+
+        clopen();
+        for (int i=0; i<numMissing; i++) {
+            Assert.assertEquals(1, indexed(name, "name-" + i));
+        }
+    }
+
+    /**
+     * Tests that the join check finds problems in both directions, and that
+     * its report repairs them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testJoinCheck() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+
+        //entries for vertices that don't exist, and a vertex value without its entry
+        int numFakes = 2;
+        addFakeIndexEntries(name, numFakes);
+        removeIndexEntries(name, "name-0");
+
+        TitanGraphTools fx;
+        File report = File.createTempFile("titan-tools", ".jsonl.gz");
+        File recheck = File.createTempFile("titan-tools", ".jsonl.gz");
+        report.delete();
+        recheck.delete();
+        try {
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setScanThreads(2);
+            fx.setSpillBytes(1024);
+            fx.setReportFile(report.getPath());
+            fx.checkTypesByJoin("name");
+
+            List<String> lines = readReport(report);
+            Assert.assertEquals(numFakes + 1, lines.size());
+            int deleted = 0;
+            int missing = 0;
+            for (String line: lines) {
+                if (line.contains("\"kind\":\"deleted vertex\"")) deleted++;
+                if (line.contains("\"kind\":\"missing index entry\"")) missing++;
+            }
+            Assert.assertEquals(numFakes, deleted);
+            Assert.assertEquals(1, missing);
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.applyReport(report.getPath());
+            clopen();
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setReportFile(recheck.getPath());
+            fx.checkTypesByJoin("name");
+            Assert.assertEquals(0, recheck.exists() ? readReport(recheck).size() : 0);
+        } finally {
+            report.delete();
+            recheck.delete();
+        }
+    }
+
+    /**
+     * Tests that a second entry for a value a vertex holds, written for
+     * another property, is reported as a stale entry by the join check, the
+     * same as by a full check, and that its report removes it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testJoinCheckDuplicateEntry() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 5);
+        clopen();
+
+        //a duplicate entry for name-0, pointing to the right vertex with another property id
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        KeyColumnValueStore indexStore = fx.getBackend().getVertexIndexStore();
+        InternalTitanTransaction itx = (InternalTitanTransaction) graphdb.newTransaction();
+        StoreTransaction stx = ((BackendTransaction) itx.getTxHandle()).getStoreTransactionHandle();
+        long vertexId = ((StandardTitanGraph) graphdb).indexRetrieval("name-0", name, itx)[0];
+        List<Entry> additions = new ArrayList<Entry>(1);
+        additions.add(new Entry(fx.getIndexColumn(name, 9999), VariableLong.positiveByteBuffer(vertexId)));
+        indexStore.mutate(fx.getIndexKey("name-0"), additions, null, stx);
+        itx.commit();
+        clopen();
+
+        File joined = File.createTempFile("titan-tools", ".jsonl.gz");
+        File checked = File.createTempFile("titan-tools", ".jsonl.gz");
+        File recheck = File.createTempFile("titan-tools", ".jsonl.gz");
+        joined.delete();
+        checked.delete();
+        recheck.delete();
+        try {
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setReportFile(joined.getPath());
+            fx.checkTypesByJoin("name");
+            List<String> lines = readReport(joined);
+            Assert.assertEquals(1, lines.size());
+            Assert.assertTrue(lines.get(0).contains("\"kind\":\"stale index entry\""));
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setReportFile(checked.getPath());
+            fx.checkType(name);
+            lines = readReport(checked);
+            Assert.assertEquals(1, lines.size());
+            Assert.assertTrue(lines.get(0).contains("\"kind\":\"stale index entry\""));
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.applyReport(joined.getPath());
+            clopen();
+            Assert.assertEquals(1, indexed(name, "name-0"));
+
+            fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+            fx.setReportFile(recheck.getPath());
+            fx.checkTypesByJoin("name");
+            Assert.assertEquals(0, recheck.exists() ? readReport(recheck).size() : 0);
+        } finally {
+            joined.delete();
+            checked.delete();
+            recheck.delete();
+        }
+    }
+
+    private static List<String> readReport(File report) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(report))));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Tests that sampling every row matches a full check, and that a smaller
+     * sample reads fewer rows and gives an interval around its estimate
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSampleType() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        int numVertices = 10;
+        addVertices(name, "name", numVertices);
+
+        //as many entries for vertices that don't exist as good ones
+        addFakeIndexEntries(name, numVertices);
+
+        //sampling every row is a full check
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        IndexEstimate all = fx.sampleTypes(Lists.newArrayList(name), 1.0, 1).get(0);
+        Assert.assertEquals(numVertices * 2, all.getEntriesSampled());
+        Assert.assertEquals(numVertices, all.getDeletedVertices());
+        Assert.assertEquals(0, all.getMismatchedProperties());
+        Assert.assertEquals(0.5, all.getRate(), 0.0001);
+        Assert.assertTrue(all.getRateLow() < 0.5 && all.getRateHigh() > 0.5);
+        Assert.assertEquals(numVertices * 2, all.getEstimatedEntries());
+
+        //a sample only reads some rows, and repairs nothing
+        IndexEstimate some = fx.sampleTypes(Lists.newArrayList(name), 0.5, 1).get(0);
+        Assert.assertTrue(some.getRowsSampled() < all.getRowsSampled());
+        Assert.assertTrue(some.getRateLow() <= some.getRate() && some.getRate() <= some.getRateHigh());
+        Assert.assertEquals(all.getRowsSampled(), fx.sampleTypes(Lists.newArrayList(name), 1.0, 2).get(0).getRowsSampled());
+        Assert.assertEquals(numVertices, fx.sampleType("name", 1.0).getDeletedVertices());
+    }
+
+    /**
+     * Tests that two workers coordinating through the store split a job's
+     * ranges between them, and that the job keeps its number of ranges
+     * until it's reset
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCoordinatedIndexRepair() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+        int numFakes = 20;
+        addFakeIndexEntries(name, numFakes);
+
+        //two workers split the job between them, as processes on different hosts would
+        int ranges = 4;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<2; i++) {
+            final JobCoordinator coordinator = new TitanGraphTools((StandardTitanGraph) graphdb)
+                    .coordinator("repair-name", ranges, "worker-" + i);
+            coordinator.setClaimWaitMillis(100);
+            coordinator.setLeaseMillis(3000);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        coordinator.repairTypes("name");
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads) thread.join();
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+        clopen();
+
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        JobCoordinator coordinator = fx.coordinator("repair-name", ranges, "checker");
+        Assert.assertEquals(ranges, coordinator.getCompletedRanges());
+
+        //a job keeps its number of ranges until it's reset
+        try {
+            fx.coordinator("repair-name", ranges + 1, "checker");
+            Assert.fail("the job was opened with a different number of ranges");
+        } catch (RepairException e) {
+            //expected
+        }
+        coordinator.reset();
+        Assert.assertEquals(0, coordinator.getCompletedRanges());
+
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(0, indexed(name, "fake-" + i));
+        }
+    }
+
+    /**
+     * Tests that a range whose worker died without releasing it is taken
+     * over by another worker once the lease expires
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredLeaseTakeover() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+        int numFakes = 5;
+        addFakeIndexEntries(name, numFakes);
+
+        //the first worker fails once it holds the range, leaving its claim behind
+        TitanGraphTools dead = new TitanGraphTools((StandardTitanGraph) graphdb);
+        dead.setJmxEnabled(false);
+        dead.addListener(new ScanListenerAdapter() {
+            public void scanStarted(ScanMetrics metrics) {
+                throw new IllegalStateException("died");
+            }
+        });
+        JobCoordinator first = dead.coordinator("repair-name", 1, "worker-0");
+        first.setClaimWaitMillis(50);
+        first.setLeaseMillis(600);
+        try {
+            first.repairTypes("name");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //exception expected
+        }
+
+        //the second worker waits for the claim to expire, then runs the range
+        JobCoordinator second = new TitanGraphTools((StandardTitanGraph) graphdb)
+                .coordinator("repair-name", 1, "worker-1");
+        second.setClaimWaitMillis(50);
+        second.setLeaseMillis(600);
+        long start = System.currentTimeMillis();
+        second.repairTypes("name");
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+        Assert.assertEquals(1, second.getCompletedRanges());
+
+        clopen();
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(0, indexed(name, "fake-" + i));
+        }
+    }
+
+    /**
+     * Tests that a worker whose lease is lost while it runs a range stops,
+     * and doesn't mark the range done, so the range is run again in full
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLostLeaseIsNotCompleted() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+        int numFakes = 5;
+        addFakeIndexEntries(name, numFakes);
+
+        //the first scan stalls before its first key until the lease is lost, the next ones run
+        final int[] starts = { 0 };
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final List<Throwable> outcomes = Collections.synchronizedList(new ArrayList<Throwable>());
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setJmxEnabled(false);
+        fx.addListener(new ScanListenerAdapter() {
+            public void scanStarted(ScanMetrics metrics) {
+                if (++starts[0] > 1) return;
+                stalled.countDown();
+                try {
+                    resume.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("interrupted");
+                }
+            }
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                outcomes.add(failure);
+            }
+        });
+        final JobCoordinator worker = fx.coordinator("repair-name", 1, "worker-0");
+        worker.setClaimWaitMillis(50);
+        worker.setLeaseMillis(600);
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    worker.repairTypes("name");
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        thread.start();
+        Assert.assertTrue(stalled.await(10, TimeUnit.SECONDS));
+
+        //removing the claim takes the range away from the stalled worker
+        JobCoordinator other = new TitanGraphTools((StandardTitanGraph) graphdb)
+                .coordinator("repair-name", 1, "worker-1");
+        other.reset();
+        //the heartbeat beats three times per lease, and finds the claim gone
+        Thread.sleep(worker.getLeaseMillis());
+        resume.countDown();
+        thread.join(30000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+
+        //the stalled scan was cancelled before its first key, and the lost
+        //range wasn't marked done, so it was claimed and run again
+        Assert.assertEquals(2, starts[0]);
+        Assert.assertEquals(2, outcomes.size());
+        Assert.assertTrue(outcomes.get(0) instanceof RepairException);
+        Assert.assertNull(outcomes.get(1));
+        Assert.assertEquals(1, other.getCompletedRanges());
+
+        clopen();
+        for (int i=0; i<numFakes; i++) {
+            Assert.assertEquals(0, indexed(name, "fake-" + i));
+        }
+    }
+
     /**
      * Tests that an index associating an incorrect value with a vertex is repaired,
      * the erroneous value needs to be removed and the correct one inserted.
@@ -280,6 +969,119 @@ public abstract class IndexRepairTest extends GraphTest {
 
     }
 
+    /**
+     * Tests that a checkpointed reindex completes and removes its checkpoint,
+     * and that a checkpoint written by a different job is rejected
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCheckpointedReindex() throws Exception {
+        TitanKey name = makeType("name", String.class, true, false);
+        addVertices(name, "name", 10);
+        clopen();
+
+        File checkpoint = File.createTempFile("titan-tools", ".checkpoint");
+        checkpoint.delete();
+
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setCheckpointFile(checkpoint.getPath());
+        fx.setCheckpointInterval(3);
+        fx.setReindexBatchSize(4);
+        fx.reindexType(name);
+        Assert.assertFalse(checkpoint.exists());
+
+        //a checkpoint from another job must not be resumed
+        Properties props = new Properties();
+        props.setProperty("job", "cleanVertices");
+        props.setProperty("position", "5");
+        FileOutputStream out = new FileOutputStream(checkpoint);
+        props.store(out, null);
+        out.close();
+
+        fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setCheckpointFile(checkpoint.getPath());
+        try {
+            fx.reindexType(name);
+            Assert.fail();
+        } catch (RepairException e) {
+            //exception expected
+        }
+        Assert.assertTrue(checkpoint.exists());
+        checkpoint.delete();
+    }
+
+    /**
+     * Tests that a check stopped part way through resumes after the last row
+     * its checkpoint recorded, so that every row is counted exactly once
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testResumedIndexCheck() throws Exception {
+        TitanKey id = makeType("vid", String.class, true, true);
+
+        //enough rows for the listener to be told of progress part way through
+        int numVertices = 1500;
+        addVertices(id, "id", numVertices);
+        clopen();
+
+        //the rows each scan started from, metrics are updated as scans go
+        final List<Long> started = new ArrayList<Long>();
+        final List<ScanMetrics> finished = new ArrayList<ScanMetrics>();
+        final boolean[] interrupt = { false };
+        ScanListener listener = new ScanListenerAdapter() {
+            public void scanStarted(ScanMetrics metrics) {
+                started.add(metrics.getRowsCompleted());
+            }
+            public void progress(ScanMetrics metrics) {
+                if (interrupt[0]) throw new IllegalStateException("interrupted");
+            }
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                if (failure == null) finished.add(metrics);
+            }
+        };
+
+        //an uninterrupted check, to compare with
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph) graphdb);
+        fx.setJmxEnabled(false);
+        fx.addListener(listener);
+        fx.checkType(id);
+        Assert.assertEquals(1, finished.size());
+        long numRows = finished.get(0).getRowsCompleted();
+        Assert.assertEquals(numVertices, finished.get(0).getCounter("vid.entries"));
+
+        File checkpoint = File.createTempFile("titan-tools", ".checkpoint");
+        checkpoint.delete();
+        started.clear();
+        finished.clear();
+
+        fx.setCheckpointFile(checkpoint.getPath());
+        fx.setCheckpointInterval(100);
+        fx.setScanThreads(2);
+        interrupt[0] = true;
+        try {
+            fx.checkType(id);
+            Assert.fail();
+        } catch (RepairException e) {
+            //exception expected
+        }
+        Assert.assertTrue(checkpoint.exists());
+        Assert.assertEquals(0, finished.size());
+
+        started.clear();
+        interrupt[0] = false;
+        fx.checkType(id);
+        Assert.assertFalse(checkpoint.exists());
+
+        //the second run started where the first stopped, and only counted the rest
+        Assert.assertEquals(1, started.size());
+        Assert.assertTrue(started.get(0) > 0);
+        Assert.assertEquals(1, finished.size());
+        Assert.assertEquals(numRows, finished.get(0).getRowsCompleted());
+        Assert.assertEquals(numVertices, finished.get(0).getCounter("vid.entries"));
+    }
+
 //    @Test
 //    public void testIndexCreationExperiment() throws Exception {
 //        TitanKey name = makeType("name", String.class, true, false);
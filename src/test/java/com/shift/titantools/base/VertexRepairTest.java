@@ -1,5 +1,9 @@
 package com.shift.titantools.base;
 
+import com.shift.titantools.RepairException;
+import com.shift.titantools.ScanListener;
+import com.shift.titantools.ScanListenerAdapter;
+import com.shift.titantools.ScanMetrics;
 import com.shift.titantools.TitanGraphTools;
 import com.thinkaurelius.titan.core.*;
 import com.thinkaurelius.titan.diskstorage.BackendTransaction;
@@ -16,6 +20,7 @@ import org.apache.commons.configuration.Configuration;
 import org.junit.Test;
 import junit.framework.Assert;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -146,9 +151,11 @@ public abstract class VertexRepairTest extends GraphTest {
         }
         tx.commit();
 
-        //repair
+        //repair, on several threads recycling their transactions
         tx = graphdb.newTransaction();
         fx = new TitanGraphTools((StandardTitanGraph)graphdb);
+        fx.setScanThreads(4);
+        fx.setReadTxSize(2);
         fx.cleanVertices();
         tx.commit();
 
@@ -185,4 +192,111 @@ public abstract class VertexRepairTest extends GraphTest {
         Assert.assertEquals("blake", v1.getProperty("name"));
         tx.commit();
     }
+
+    /**
+     * Test that a scan with a watermark only visits the vertices added since the last one
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIncrementalVertexCheck() throws Exception {
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph)graphdb);
+        fx.makeType("name", String.class, true, false);
+
+        for (int i=0; i<5; i++) {
+            tx.addVertex().addProperty("name", "first-" + i);
+        }
+        tx.commit();
+
+        File watermark = File.createTempFile("titan-tools", ".watermark");
+        watermark.delete();
+        try {
+            final List<Long> completed = new LinkedList<Long>();
+            ScanListener listener = new ScanListenerAdapter() {
+                public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                    completed.add(metrics.getRowsCompleted());
+                }
+            };
+
+            //without a watermark every vertex is visited
+            fx = new TitanGraphTools((StandardTitanGraph)graphdb);
+            fx.addListener(listener);
+            fx.setWatermarkFile(watermark.getPath());
+            fx.checkVertices();
+            Assert.assertTrue(watermark.exists());
+            Assert.assertTrue(completed.get(0) >= 5);
+
+            //then only the new ones
+            tx = graphdb.newTransaction();
+            for (int i=0; i<3; i++) {
+                tx.addVertex().addProperty("name", "second-" + i);
+            }
+            tx.commit();
+            fx.checkVertices();
+            Assert.assertEquals(3, completed.get(1).longValue());
+
+            fx.checkVertices();
+            Assert.assertEquals(0, completed.get(2).longValue());
+
+            //a watermark belongs to one kind of scan
+            try {
+                fx.cleanVertices();
+                Assert.fail("the watermark of checkVertices was used by cleanVertices");
+            } catch (RepairException e) {
+                //expected
+            }
+        } finally {
+            watermark.delete();
+        }
+    }
+
+    /**
+     * Test that the shards of a vertex scan split the vertices between them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testShardedVertexCheck() throws Exception {
+        TitanGraphTools fx = new TitanGraphTools((StandardTitanGraph)graphdb);
+        fx.makeType("name", String.class, true, false);
+
+        TitanVertex v = null;
+        for (int i=0; i<20; i++) {
+            v = tx.addVertex();
+            v.addProperty("name", "vertex-" + i);
+        }
+        tx.commit();
+
+        final List<Long> completed = new LinkedList<Long>();
+        fx = new TitanGraphTools((StandardTitanGraph)graphdb);
+        fx.addListener(new ScanListenerAdapter() {
+            public void scanFinished(ScanMetrics metrics, Throwable failure) {
+                completed.add(metrics.getRowsCompleted());
+            }
+        });
+
+        fx.checkVertices();
+        long all = completed.get(0);
+
+        int shards = 3;
+        long sharded = 0;
+        for (int i=0; i<shards; i++) {
+            fx.setShard(i, shards);
+            fx.checkVertices();
+            long rows = completed.get(completed.size() - 1);
+            Assert.assertTrue(rows < all);
+            sharded += rows;
+        }
+        Assert.assertEquals(all, sharded);
+
+        //restricted to partitions
+        long partition = fx.getIdManager().getPartitionID(v.getID());
+        fx.setShard(0, 1);
+        fx.setPartitions(partition);
+        fx.checkVertices();
+        Assert.assertTrue(completed.get(completed.size() - 1) >= 20);
+        fx.setPartitions(partition + 1);
+        fx.checkVertices();
+        Assert.assertEquals(0, completed.get(completed.size() - 1).longValue());
+    }
 }